@@ -0,0 +1,302 @@
+package com.hero.retrywhendo;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * 自适应的重试间隔
+ * 固定的重试列表只是猜测：有的操作重试得太早白白浪费次数，有的操作等待的时间远超依赖恢复所需的时间。
+ * 这里按操作的 key 统计"从第一次失败到成功"的恢复时间，下一次重试的间隔取该分布的分位数：
+ * 已经等待了 elapsed，则取恢复时间大于 elapsed 的那部分样本的分位数，减去 elapsed，再限制在 [minDelay, maxDelay] 内。
+ * 样本不足时使用重试列表中的间隔。
+ *
+ * 统计使用固定大小、基于基本类型数组的开放寻址表：每个 key 只占一个 long 和 BUCKET_COUNT 个 int，
+ * 恢复时间按对数线性分桶（毫秒）；key 数量超过容量时淘汰最久没有使用的；样本过多时减半，以适应变化。
+ * 多个执行共用同一个 AdaptiveBackoff。
+ * </pre>
+ */
+public class AdaptiveBackoff {
+
+    /**
+     * 恢复时间的分桶数  对数线性分桶：每个2的幂区间再等分为4个桶，误差不超过25%，最大约35分钟
+     */
+    static final int BUCKET_COUNT = 80;
+
+    private static final long EMPTY = 0;
+
+    private final int mask;
+
+    /**
+     * key 的哈希，EMPTY 为空
+     */
+    private final long[] keyHashes;
+
+    /**
+     * 每个 key 的分桶计数，按 slot * BUCKET_COUNT 存放
+     */
+    private final int[] buckets;
+
+    private final int[] sampleCounts;
+
+    /**
+     * 最近一次使用的序号，用于淘汰
+     */
+    private final long[] lastUsed;
+
+    private long useSequence;
+
+    /**
+     * 分位数 0~1，默认0.75
+     */
+    private volatile double quantile = 0.75;
+
+    private volatile long minDelayMillis = 100;
+
+    private volatile long maxDelayMillis = 60_000;
+
+    /**
+     * 至少多少个样本才使用学习到的间隔
+     */
+    private volatile int minSamples = 5;
+
+    /**
+     * 单个 key 的样本数超过后减半
+     */
+    private volatile int maxSamples = 1024;
+
+    /**
+     * @param capacity 最多统计多少个 key，会向上取整为2的幂
+     */
+    public AdaptiveBackoff(int capacity) {
+        int size = capacity <= 8 ? 8 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        keyHashes = new long[size];
+        buckets = new int[size * BUCKET_COUNT];
+        sampleCounts = new int[size];
+        lastUsed = new long[size];
+    }
+
+    public AdaptiveBackoff setQuantile(double quantile) {
+        if (quantile > 0 && quantile <= 1) {
+            this.quantile = quantile;
+        }
+        return this;
+    }
+
+    /**
+     * 间隔的范围
+     */
+    public AdaptiveBackoff setBounds(long minDelayMillis, long maxDelayMillis) {
+        if (minDelayMillis >= 0 && maxDelayMillis >= minDelayMillis) {
+            this.minDelayMillis = minDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+        return this;
+    }
+
+    public AdaptiveBackoff setMinSamples(int minSamples) {
+        if (minSamples > 0) {
+            this.minSamples = minSamples;
+        }
+        return this;
+    }
+
+    public AdaptiveBackoff setMaxSamples(int maxSamples) {
+        if (maxSamples > 1) {
+            this.maxSamples = maxSamples;
+        }
+        return this;
+    }
+
+    /**
+     * 记录一次恢复  从第一次失败到成功的时间
+     */
+    public synchronized void record(String key, long recoveryMillis) {
+        int slot = findOrInsert(hash(key));
+        int base = slot * BUCKET_COUNT;
+        buckets[base + bucketOf(recoveryMillis)]++;
+        if (++sampleCounts[slot] > maxSamples) {
+            //减半，让旧的样本逐渐失去影响
+            int count = 0;
+            for (int i = base; i < base + BUCKET_COUNT; i++) {
+                buckets[i] >>= 1;
+                count += buckets[i];
+            }
+            sampleCounts[slot] = count;
+        }
+    }
+
+    /**
+     * 下一次重试的间隔
+     *
+     * @param elapsedMillis  从第一次失败到现在的时间
+     * @param fallbackMillis 样本不足时使用的间隔（重试列表中的间隔）
+     * @return 毫秒
+     */
+    public synchronized long nextDelayMillis(String key, long elapsedMillis, long fallbackMillis) {
+        int slot = find(hash(key));
+        if (slot < 0 || sampleCounts[slot] < minSamples) {
+            return fallbackMillis;
+        }
+        lastUsed[slot] = ++useSequence;
+        int base = slot * BUCKET_COUNT;
+        //只看还没有恢复的那部分样本
+        int fromBucket = bucketOf(Math.max(0, elapsedMillis));
+        long total = 0;
+        for (int i = fromBucket; i < BUCKET_COUNT; i++) {
+            total += buckets[base + i];
+        }
+        if (total == 0) {
+            //已经超过了所有样本，按上限等待
+            return maxDelayMillis;
+        }
+        long recovery = quantileMillis(base, fromBucket, total);
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, recovery - elapsedMillis));
+    }
+
+    /**
+     * 学习到的恢复时间的分位数，用于查看
+     *
+     * @return 毫秒，没有样本返回 -1
+     */
+    public synchronized long getLearnedRecoveryMillis(String key) {
+        int slot = find(hash(key));
+        if (slot < 0 || sampleCounts[slot] == 0) {
+            return -1;
+        }
+        return quantileMillis(slot * BUCKET_COUNT, 0, sampleCounts[slot]);
+    }
+
+    /**
+     * 学习到的恢复时间的分桶计数，下标 i 的范围为 [bucketLowerMillis(i), bucketUpperMillis(i)] 毫秒
+     */
+    public synchronized int[] getLearnedBuckets(String key) {
+        int slot = find(hash(key));
+        if (slot < 0) {
+            return new int[BUCKET_COUNT];
+        }
+        return Arrays.copyOfRange(buckets, slot * BUCKET_COUNT, (slot + 1) * BUCKET_COUNT);
+    }
+
+    public synchronized int getSampleCount(String key) {
+        int slot = find(hash(key));
+        return slot < 0 ? 0 : sampleCounts[slot];
+    }
+
+    /**
+     * 清除某个 key 学习到的数据
+     */
+    public synchronized void reset(String key) {
+        int slot = find(hash(key));
+        if (slot >= 0) {
+            Arrays.fill(buckets, slot * BUCKET_COUNT, (slot + 1) * BUCKET_COUNT, 0);
+            sampleCounts[slot] = 0;
+        }
+    }
+
+    /**
+     * 清除全部学习到的数据
+     */
+    public synchronized void resetAll() {
+        Arrays.fill(keyHashes, EMPTY);
+        Arrays.fill(buckets, 0);
+        Arrays.fill(sampleCounts, 0);
+        Arrays.fill(lastUsed, 0);
+    }
+
+    /**
+     * 分位数  在所在的桶内线性插值
+     */
+    private long quantileMillis(int base, int fromBucket, long total) {
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long count = 0;
+        for (int i = fromBucket; i < BUCKET_COUNT; i++) {
+            int bucketCount = buckets[base + i];
+            if (count + bucketCount >= target) {
+                long lower = bucketLowerMillis(i);
+                long width = bucketUpperMillis(i) - lower;
+                return lower + width * (target - count) / bucketCount;
+            }
+            count += bucketCount;
+        }
+        return bucketUpperMillis(BUCKET_COUNT - 1);
+    }
+
+    static int bucketOf(long millis) {
+        if (millis < 4) {
+            return (int) Math.max(0, millis);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int sub = (int) (millis >> (exponent - 2)) & 3;
+        return Math.min(BUCKET_COUNT - 1, 4 * (exponent - 1) + sub);
+    }
+
+    public static long bucketLowerMillis(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        return (long) (4 + bucket % 4) << (exponent - 2);
+    }
+
+    public static long bucketUpperMillis(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        return ((long) (4 + bucket % 4 + 1) << (exponent - 2)) - 1;
+    }
+
+    private int find(long hash) {
+        int index = (int) hash & mask;
+        for (int i = 0; i <= mask; i++) {
+            long keyHash = keyHashes[index];
+            if (keyHash == hash) {
+                return index;
+            }
+            if (keyHash == EMPTY) {
+                return -1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int findOrInsert(long hash) {
+        int index = (int) hash & mask;
+        int oldest = index;
+        for (int i = 0; i <= mask; i++) {
+            long keyHash = keyHashes[index];
+            if (keyHash == hash || keyHash == EMPTY) {
+                if (keyHash == EMPTY) {
+                    keyHashes[index] = hash;
+                }
+                lastUsed[index] = ++useSequence;
+                return index;
+            }
+            if (lastUsed[index] < lastUsed[oldest]) {
+                oldest = index;
+            }
+            index = (index + 1) & mask;
+        }
+        //已满，淘汰最久没有使用的
+        keyHashes[oldest] = hash;
+        Arrays.fill(buckets, oldest * BUCKET_COUNT, (oldest + 1) * BUCKET_COUNT, 0);
+        sampleCounts[oldest] = 0;
+        lastUsed[oldest] = ++useSequence;
+        return oldest;
+    }
+
+    /**
+     * FNV-1a 64位哈希，不会返回 EMPTY
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        String value = key == null ? "" : key;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+}
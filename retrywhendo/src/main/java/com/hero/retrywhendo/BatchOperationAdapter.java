@@ -0,0 +1,194 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.bean.BatchFailedBean;
+import com.hero.retrywhendo.interfaces.BatchOperationCallBack;
+import com.hero.retrywhendo.interfaces.OnDoBatchOperationListener;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <pre>
+ * 把批量操作适配成普通操作
+ * 每次操作只把还没有成功的项交给 OnDoBatchOperationListener，成功的结果累积起来；
+ * 全部成功时回调 onSuccess(List<S>)（按原始顺序），否则回调 onFailed(BatchFailedBean) 触发下一次重试。
+ * 结果按项在本次 items 中的位置回调，重复的项、相等的项互不影响。
+ * Builder 中保存的只是模板，每次执行通过 newRun() 使用单独的实例保存进度，同一个 Builder 的多个执行互不影响。
+ * </pre>
+ */
+class BatchOperationAdapter<I, F, S> implements OnDoOperationListener<List<I>, BatchFailedBean<I, F, S>, List<S>> {
+
+    private final OnDoBatchOperationListener<I, F, S> onDoBatchOperationListener;
+
+    /**
+     * 以下字段都由 this 保护
+     * 每一项成功的结果，第一次操作时创建
+     */
+    private Object[] results;
+
+    /**
+     * 已经成功的项
+     */
+    private BitSet succeeded;
+
+    BatchOperationAdapter(OnDoBatchOperationListener<I, F, S> onDoBatchOperationListener) {
+        this.onDoBatchOperationListener = onDoBatchOperationListener;
+    }
+
+    /**
+     * 一次新的执行  进度保存在返回的实例中
+     */
+    BatchOperationAdapter<I, F, S> newRun() {
+        return new BatchOperationAdapter<>(onDoBatchOperationListener);
+    }
+
+    /**
+     * 未设置 key 时使用的 key  取批量操作接口的类名，不同的批量操作不会共用一个 key
+     */
+    String getOperationKey() {
+        return onDoBatchOperationListener.getClass().getName();
+    }
+
+    @Override
+    public void onDoOperation(List<I> items, OperationCallBack<BatchFailedBean<I, F, S>, List<S>> operationCallBack) {
+        List<I> pendingItems = new ArrayList<>();
+        int[] indexes;
+        synchronized (this) {
+            if (results == null) {
+                int size = items == null ? 0 : items.size();
+                results = new Object[size];
+                succeeded = new BitSet(size);
+            }
+            indexes = new int[results.length - succeeded.cardinality()];
+            int position = 0;
+            for (int i = succeeded.nextClearBit(0); i < results.length; i = succeeded.nextClearBit(i + 1)) {
+                pendingItems.add(items.get(i));
+                indexes[position++] = i;
+            }
+        }
+
+        if (pendingItems.isEmpty()) {
+            operationCallBack.onSuccess(successList());
+            return;
+        }
+
+        onDoBatchOperationListener.onDoBatchOperation(Collections.unmodifiableList(pendingItems),
+                new RoundCallBack(pendingItems, indexes, operationCallBack));
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized List<S> successList() {
+        List<S> successList = new ArrayList<>(succeeded.cardinality());
+        for (int i = succeeded.nextSetBit(0); i >= 0; i = succeeded.nextSetBit(i + 1)) {
+            successList.add((S) results[i]);
+        }
+        return successList;
+    }
+
+    /**
+     * 一次操作的回调  传入的每一项都回调后汇总
+     */
+    private class RoundCallBack implements BatchOperationCallBack<I, F, S> {
+
+        private final List<I> items;
+
+        /**
+         * 本次的位置 -> 原始的位置
+         */
+        private final int[] indexes;
+        private final OperationCallBack<BatchFailedBean<I, F, S>, List<S>> operationCallBack;
+
+        /**
+         * 已经回调过的位置
+         */
+        private final BitSet done;
+        private final List<I> failedItems = new ArrayList<>();
+        private final List<F> failedBeans = new ArrayList<>();
+        private int remaining;
+        private boolean isFinished;
+
+        RoundCallBack(List<I> items, int[] indexes, OperationCallBack<BatchFailedBean<I, F, S>, List<S>> operationCallBack) {
+            this.items = items;
+            this.indexes = indexes;
+            this.operationCallBack = operationCallBack;
+            this.done = new BitSet(indexes.length);
+            this.remaining = indexes.length;
+        }
+
+        /**
+         * @return 是否第一次回调该位置
+         */
+        private boolean markDone(int position) {
+            if (isFinished || position < 0 || position >= indexes.length || done.get(position)) {
+                return false;
+            }
+            done.set(position);
+            return true;
+        }
+
+        @Override
+        public void onItemFailed(int position, F failedBean) {
+            synchronized (this) {
+                if (!markDone(position)) {
+                    return;
+                }
+                failedItems.add(items.get(position));
+                failedBeans.add(failedBean);
+            }
+            onItemDone(1);
+        }
+
+        @Override
+        public void onItemSuccess(int position, S successBean) {
+            synchronized (this) {
+                if (!markDone(position)) {
+                    return;
+                }
+                synchronized (BatchOperationAdapter.this) {
+                    results[indexes[position]] = successBean;
+                    succeeded.set(indexes[position]);
+                }
+            }
+            onItemDone(1);
+        }
+
+        @Override
+        public void onBatchFailed(F failedBean) {
+            int count = 0;
+            synchronized (this) {
+                if (isFinished) {
+                    return;
+                }
+                for (int i = done.nextClearBit(0); i < indexes.length; i = done.nextClearBit(i + 1)) {
+                    done.set(i);
+                    failedItems.add(items.get(i));
+                    failedBeans.add(failedBean);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                onItemDone(count);
+            }
+        }
+
+        private void onItemDone(int count) {
+            synchronized (this) {
+                remaining -= count;
+                if (remaining > 0 || isFinished) {
+                    return;
+                }
+                isFinished = true;
+            }
+            if (failedItems.isEmpty()) {
+                operationCallBack.onSuccess(successList());
+                return;
+            }
+            //只有失败的项会在下一次重试中处理
+            operationCallBack.onFailed(new BatchFailedBean<>(failedItems, failedBeans, successList()));
+        }
+    }
+}
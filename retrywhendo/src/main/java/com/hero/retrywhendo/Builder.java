@@ -2,11 +2,16 @@ package com.hero.retrywhendo;
 
 import androidx.lifecycle.LifecycleOwner;
 
+import com.hero.retrywhendo.bean.TargetStatsBean;
+import com.hero.retrywhendo.interfaces.FallbackCallBack;
+import com.hero.retrywhendo.interfaces.FallbackSupplier;
 import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoBatchOperationListener;
 import com.hero.retrywhendo.interfaces.OperationCallBack;
 import com.hero.retrywhendo.interfaces.OnDoOperationListener;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -64,11 +69,74 @@ public class Builder<T> {
      */
     private Scheduler observeOnScheduler = AndroidSchedulers.mainThread();
 
+    /**
+     * 轮询计时的线程  默认computation线程
+     */
+    private Scheduler pollingScheduler = Schedulers.computation();
+
     /**
      * 使用AutoDispose 防止内存泄漏
      */
     private LifecycleOwner owner;
 
+    /**
+     * 重试闸门，关闭时挂起到期的重试，打开后再错开执行
+     */
+    private RetryGate retryGate;
+
+    /**
+     * 兜底数据的提供者，第一次失败后提供临时结果
+     */
+    private FallbackSupplier fallbackSupplier;
+
+    /**
+     * 兜底数据的回调
+     */
+    private FallbackCallBack fallbackCallBack;
+
+    /**
+     * 执行过程的追踪，不设置则不追踪
+     */
+    private RetryTracer tracer;
+
+    /**
+     * 所属的组，由组统一管理生命周期
+     */
+    private RetryGroup retryGroup;
+
+    /**
+     * 合并分发回调，不设置则每个回调单独 post 到回调线程
+     */
+    private CallBackDispatcher callBackDispatcher;
+
+    /**
+     * 单次操作的超时时间，默认为0，不超时
+     * 超时的操作按失败处理并进行下一次重试，之后如果它回调成功，仍然会作为最终结果
+     */
+    private long attemptTimeout;
+
+    private TimeUnit attemptTimeoutUnit = TimeUnit.SECONDS;
+
+    /**
+     * 操作的 key，同一类操作使用相同的 key 共享统计
+     */
+    private String operationKey;
+
+    /**
+     * 自适应的重试间隔，不设置则按重试列表
+     */
+    private AdaptiveBackoff adaptiveBackoff;
+
+    /**
+     * 优先级调度，不设置则直接在 subscribeOnScheduler 中执行
+     */
+    private PriorityRetryScheduler priorityScheduler;
+
+    /**
+     * 优先级  默认 PriorityRetryScheduler.PRIORITY_DEFAULT
+     */
+    private int priority = PriorityRetryScheduler.PRIORITY_DEFAULT;
+
     public long getDelay() {
         return delay;
     }
@@ -93,6 +161,16 @@ public class Builder<T> {
         return onDoOperationListener;
     }
 
+    /**
+     * 故障转移中每个操作实现的统计，未使用 setOnDoOperationListeners 时为空列表
+     */
+    public List<TargetStatsBean> getFailoverTargetStats() {
+        if (onDoOperationListener instanceof FailoverOperationListener) {
+            return ((FailoverOperationListener) onDoOperationListener).getTargetStats();
+        }
+        return Collections.emptyList();
+    }
+
     public List<Integer> getDelayTimeList() {
         return delayTimeList;
     }
@@ -105,10 +183,62 @@ public class Builder<T> {
         return observeOnScheduler;
     }
 
+    public Scheduler getPollingScheduler() {
+        return pollingScheduler;
+    }
+
     public LifecycleOwner getOwner() {
         return owner;
     }
 
+    public RetryGate getRetryGate() {
+        return retryGate;
+    }
+
+    public FallbackSupplier getFallbackSupplier() {
+        return fallbackSupplier;
+    }
+
+    public FallbackCallBack getFallbackCallBack() {
+        return fallbackCallBack;
+    }
+
+    public RetryTracer getTracer() {
+        return tracer;
+    }
+
+    public RetryGroup getRetryGroup() {
+        return retryGroup;
+    }
+
+    public CallBackDispatcher getCallBackDispatcher() {
+        return callBackDispatcher;
+    }
+
+    public long getAttemptTimeout() {
+        return attemptTimeout;
+    }
+
+    public TimeUnit getAttemptTimeoutUnit() {
+        return attemptTimeoutUnit;
+    }
+
+    public String getOperationKey() {
+        return operationKey;
+    }
+
+    public AdaptiveBackoff getAdaptiveBackoff() {
+        return adaptiveBackoff;
+    }
+
+    public PriorityRetryScheduler getPriorityScheduler() {
+        return priorityScheduler;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
     public Builder setIsDebug(boolean isDebug) {
         this.isDebug = isDebug;
         return this;
@@ -128,6 +258,28 @@ public class Builder<T> {
         return this;
     }
 
+    /**
+     * 轮询计时的线程  测试时可以使用 TestScheduler 控制时间
+     */
+    public Builder setPollingScheduler(Scheduler pollingScheduler) {
+        if (pollingScheduler != null) {
+            this.pollingScheduler = pollingScheduler;
+        }
+        return this;
+    }
+
+    /**
+     * 合并分发回调  设置后回调在 CallBackDispatcher 的线程中执行，observeOnScheduler 不再用于回调
+     * 多个执行共用同一个 CallBackDispatcher 才能合并
+     *
+     * @param callBackDispatcher
+     * @return
+     */
+    public Builder setCallBackDispatcher(CallBackDispatcher callBackDispatcher) {
+        this.callBackDispatcher = callBackDispatcher;
+        return this;
+    }
+
     /**
      * 内部已有判断  可以传空值
      *
@@ -139,6 +291,17 @@ public class Builder<T> {
         return this;
     }
 
+    /**
+     * 加入组  设置后由组统一停止，不再使用 setOwner 的 AutoDispose，也不需要切换到主线程订阅
+     *
+     * @param retryGroup
+     * @return
+     */
+    public Builder setRetryGroup(RetryGroup retryGroup) {
+        this.retryGroup = retryGroup;
+        return this;
+    }
+
     /**
      * 传入参数
      *
@@ -167,11 +330,103 @@ public class Builder<T> {
         return this;
     }
 
+    /**
+     * 单次操作的超时时间，默认为0，不超时
+     * 超时的操作按失败处理并进行下一次重试，但不会被中断；之后它回调的成功仍然有效，会结束执行并取消等待中的重试
+     */
+    public Builder setAttemptTimeout(long attemptTimeout, TimeUnit unit) {
+        if (attemptTimeout >= 0 && unit != null) {
+            this.attemptTimeout = attemptTimeout;
+            this.attemptTimeoutUnit = unit;
+        }
+        return this;
+    }
+
+    /**
+     * 操作的 key  同一类操作（如同一个接口）使用相同的 key，共享自适应重试间隔等统计
+     * 不设置时使用操作接口的类名；批量操作使用批量操作接口的类名，FailoverOperationListener 使用各个实现的类名组合
+     */
+    public Builder setOperationKey(String operationKey) {
+        this.operationKey = operationKey;
+        return this;
+    }
+
+    /**
+     * 自适应的重试间隔  按 key 学习从失败到恢复的时间，取其分位数作为间隔
+     * 重试的次数仍由重试列表决定，样本不足时使用重试列表中的间隔
+     */
+    public Builder setAdaptiveBackoff(AdaptiveBackoff adaptiveBackoff) {
+        this.adaptiveBackoff = adaptiveBackoff;
+        return this;
+    }
+
+    /**
+     * 优先级调度  多个执行共用同一个 PriorityRetryScheduler，到期的操作按优先级和 key 公平排队执行
+     * 设置后操作在 PriorityRetryScheduler 的线程中执行，subscribeOnScheduler 不再用于执行操作
+     */
+    public Builder setPriorityScheduler(PriorityRetryScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+        return this;
+    }
+
+    /**
+     * 优先级  PriorityRetryScheduler.PRIORITY_INTERACTIVE、PRIORITY_DEFAULT、PRIORITY_BACKGROUND
+     */
+    public Builder setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
     public Builder setUnit(TimeUnit unit) {
         this.unit = unit;
         return this;
     }
 
+    /**
+     * 重试闸门  可以传空值，不设置则按重试列表直接重试
+     *
+     * @param retryGate
+     * @return
+     */
+    public Builder setRetryGate(RetryGate retryGate) {
+        this.retryGate = retryGate;
+        return this;
+    }
+
+    /**
+     * 兜底数据的提供者  第一次操作失败后立即通过 FallbackCallBack 回调临时结果，后台继续重试
+     * 需要同时设置 setFallbackCallBack
+     *
+     * @param fallbackSupplier
+     * @return
+     */
+    public Builder setFallbackSupplier(FallbackSupplier fallbackSupplier) {
+        this.fallbackSupplier = fallbackSupplier;
+        return this;
+    }
+
+    /**
+     * 兜底数据的回调  临时结果以及之后替换它的最新结果
+     *
+     * @param fallbackCallBack
+     * @return
+     */
+    public Builder setFallbackCallBack(FallbackCallBack fallbackCallBack) {
+        this.fallbackCallBack = fallbackCallBack;
+        return this;
+    }
+
+    /**
+     * 执行过程的追踪  多个执行可以共用一个 RetryTracer，按其采样率记录
+     *
+     * @param tracer
+     * @return
+     */
+    public Builder setTracer(RetryTracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
     public Builder setFinalCallBack(FinalCallBack finalOperationCallBack) {
         this.finalOperationCallBack = finalOperationCallBack;
         return this;
@@ -182,8 +437,70 @@ public class Builder<T> {
         return this;
     }
 
+    /**
+     * 同一操作的多个实现，按顺序故障转移
+     * 每次操作先尝试评分最好的实现（根据耗时和失败率的指数加权移动平均），失败后立即转移到下一个，全部失败才会按重试列表重试
+     *
+     * @param onDoOperationListeners 如：主接口、备用区域、本地缓存服务
+     * @return
+     */
+    public Builder setOnDoOperationListeners(List<OnDoOperationListener> onDoOperationListeners) {
+        if (onDoOperationListeners != null && !onDoOperationListeners.isEmpty()) {
+            this.onDoOperationListener = new FailoverOperationListener(onDoOperationListeners);
+        }
+        return this;
+    }
+
+    /**
+     * 批量操作  重试时只处理上次失败的项，成功的结果合并后通过 FinalCallBack.onSuccess(List) 回调
+     * 参数通过 setParam(List) 传入；失败时回调的数据为 BatchFailedBean
+     *
+     * @param onDoBatchOperationListener
+     * @return
+     */
+    public Builder setOnDoBatchOperationListener(OnDoBatchOperationListener onDoBatchOperationListener) {
+        if (onDoBatchOperationListener != null) {
+            this.onDoOperationListener = new BatchOperationAdapter(onDoBatchOperationListener);
+        }
+        return this;
+    }
+
+    /**
+     * 使用当前配置的副本创建，之后再修改 Builder（如 setParam 后再 build 一个）不影响已经创建的
+     */
     public RetryWhenDoOperationHelper build() {
-        return new RetryWhenDoOperationHelper(this);
+        return new RetryWhenDoOperationHelper(copy());
+    }
+
+    /**
+     * 复制一份配置  同一个配置多次使用时（如流水线的阶段），设置参数和回调互不影响
+     */
+    Builder<T> copy() {
+        Builder<T> builder = new Builder<>();
+        builder.isDebug = isDebug;
+        builder.t = t;
+        builder.finalOperationCallBack = finalOperationCallBack;
+        builder.onDoOperationListener = onDoOperationListener;
+        builder.delay = delay;
+        builder.delayTimeList = delayTimeList;
+        builder.unit = unit;
+        builder.subscribeOnScheduler = subscribeOnScheduler;
+        builder.observeOnScheduler = observeOnScheduler;
+        builder.pollingScheduler = pollingScheduler;
+        builder.owner = owner;
+        builder.retryGate = retryGate;
+        builder.fallbackSupplier = fallbackSupplier;
+        builder.fallbackCallBack = fallbackCallBack;
+        builder.tracer = tracer;
+        builder.retryGroup = retryGroup;
+        builder.callBackDispatcher = callBackDispatcher;
+        builder.attemptTimeout = attemptTimeout;
+        builder.attemptTimeoutUnit = attemptTimeoutUnit;
+        builder.operationKey = operationKey;
+        builder.adaptiveBackoff = adaptiveBackoff;
+        builder.priorityScheduler = priorityScheduler;
+        builder.priority = priority;
+        return builder;
     }
 
     @Override
@@ -196,6 +513,7 @@ public class Builder<T> {
                 ", subscribeOnScheduler=" + subscribeOnScheduler +
                 ", observeOnScheduler=" + observeOnScheduler +
                 ", owner=" + owner +
+                ", retryGate=" + retryGate +
                 '}';
     }
 }
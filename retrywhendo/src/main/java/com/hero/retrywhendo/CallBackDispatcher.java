@@ -0,0 +1,113 @@
+package com.hero.retrywhendo;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+
+/**
+ * <pre>
+ * 合并分发最终回调
+ * 默认每个最终回调都单独 post 到回调线程，大量执行同时结束时主线程会收到大量消息而卡顿。
+ * 设置后，回调先放入无锁队列，每个时间窗口（默认16毫秒，约一帧）只 post 一次，
+ * 一次最多处理 maxPerDrain 个，剩余的留到下一个窗口。
+ * 队列先进先出，同一个执行的回调顺序不变。
+ *
+ * 多个执行共用一个 CallBackDispatcher 才能合并。
+ * </pre>
+ */
+public class CallBackDispatcher {
+
+    private final Scheduler scheduler;
+
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 是否已经安排了处理
+     */
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+    /**
+     * 时间窗口，默认16毫秒
+     */
+    private volatile long windowMillis = 16;
+
+    /**
+     * 每次最多处理的回调数，默认64
+     */
+    private volatile int maxPerDrain = 64;
+
+    private CallBackDispatcher(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 在主线程中合并回调
+     */
+    public static CallBackDispatcher mainThread() {
+        return new CallBackDispatcher(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * @param scheduler 回调线程
+     */
+    public static CallBackDispatcher create(Scheduler scheduler) {
+        return new CallBackDispatcher(scheduler != null ? scheduler : AndroidSchedulers.mainThread());
+    }
+
+    public CallBackDispatcher setWindow(long window, TimeUnit unit) {
+        if (window >= 0 && unit != null) {
+            this.windowMillis = unit.toMillis(window);
+        }
+        return this;
+    }
+
+    public CallBackDispatcher setMaxPerDrain(int maxPerDrain) {
+        if (maxPerDrain > 0) {
+            this.maxPerDrain = maxPerDrain;
+        }
+        return this;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 放入队列，等待下一个窗口统一处理
+     */
+    void dispatch(Runnable callBack) {
+        queue.offer(callBack);
+        schedule();
+    }
+
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) {
+            scheduler.scheduleDirect(this::drain, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        int max = maxPerDrain;
+        for (int i = 0; i < max; i++) {
+            Runnable callBack = queue.poll();
+            if (callBack == null) {
+                break;
+            }
+            try {
+                callBack.run();
+            } catch (Throwable throwable) {
+                //与单独 post 时一样交给 RxJavaPlugins，不吞掉回调中的异常；剩下的回调继续处理
+                RxJavaPlugins.onError(throwable);
+            }
+        }
+        isScheduled.set(false);
+        //处理期间新加入的，或超过上限剩下的，留到下一个窗口
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.bean.TargetStatsBean;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <pre>
+ * 多个操作实现之间的故障转移
+ * 如：主接口、备用区域、本地缓存服务。每次操作按评分从好到差依次尝试，
+ * 某个实现失败后立即转移到下一个，全部失败才算本次操作失败（之后按重试列表重试）。
+ *
+ * 排序分三档：
+ * 1、健康的实现（失败率不超过 errorThreshold，默认0.5），按评分从小到大：
+ *    评分 = 成功调用耗时的指数加权移动平均 / (1 - 失败率的指数加权移动平均)；
+ *    耗时只统计成功的调用，快速失败的实现不会因为"快"而排在前面；
+ * 2、还没有调用过（或还没有成功过）的实现，按传入顺序；
+ * 3、失败率超过 errorThreshold 的实现，按失败率从小到大。
+ * 失败率随时间衰减（半衰期默认30秒），失败过的实现一段时间后会重新回到健康的一档。
+ * </pre>
+ */
+public class FailoverOperationListener<T, F, S> implements OnDoOperationListener<T, F, S> {
+
+    private final List<OnDoOperationListener<T, F, S>> listenerList;
+
+    private final TargetStats[] targetStats;
+
+    /**
+     * 未设置 key 时使用的 key  由各个实现的 key 组成，不同的实现组合不会共用一个 key
+     */
+    private final String operationKey;
+
+    /**
+     * 指数加权移动平均的系数，越大越看重最近的结果
+     */
+    private volatile double alpha = 0.3;
+
+    /**
+     * 失败率衰减的半衰期
+     */
+    private volatile long errorHalfLifeMillis = 30_000;
+
+    /**
+     * 失败率超过该值的实现排在最后
+     */
+    private volatile double errorThreshold = 0.5;
+
+    public FailoverOperationListener(List<OnDoOperationListener<T, F, S>> listenerList) {
+        List<OnDoOperationListener<T, F, S>> list = new ArrayList<>();
+        if (listenerList != null) {
+            for (OnDoOperationListener<T, F, S> listener : listenerList) {
+                if (listener != null) {
+                    list.add(listener);
+                }
+            }
+        }
+        this.listenerList = Collections.unmodifiableList(list);
+        StringBuilder keyBuilder = new StringBuilder(getClass().getName()).append('[');
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) {
+                keyBuilder.append(',');
+            }
+            keyBuilder.append(RetryWhenDoOperationHelper.getDefaultOperationKey(list.get(i)));
+        }
+        this.operationKey = keyBuilder.append(']').toString();
+        this.targetStats = new TargetStats[list.size()];
+        for (int i = 0; i < targetStats.length; i++) {
+            targetStats[i] = new TargetStats();
+        }
+    }
+
+    public FailoverOperationListener<T, F, S> setAlpha(double alpha) {
+        if (alpha > 0 && alpha <= 1) {
+            this.alpha = alpha;
+        }
+        return this;
+    }
+
+    public FailoverOperationListener<T, F, S> setErrorHalfLifeMillis(long errorHalfLifeMillis) {
+        if (errorHalfLifeMillis > 0) {
+            this.errorHalfLifeMillis = errorHalfLifeMillis;
+        }
+        return this;
+    }
+
+    public FailoverOperationListener<T, F, S> setErrorThreshold(double errorThreshold) {
+        if (errorThreshold > 0 && errorThreshold < 1) {
+            this.errorThreshold = errorThreshold;
+        }
+        return this;
+    }
+
+    String getOperationKey() {
+        return operationKey;
+    }
+
+    /**
+     * 每个实现的统计  顺序与传入顺序一致
+     */
+    public List<TargetStatsBean> getTargetStats() {
+        long nowNanos = System.nanoTime();
+        List<TargetStatsBean> statsList = new ArrayList<>(targetStats.length);
+        for (int i = 0; i < targetStats.length; i++) {
+            statsList.add(targetStats[i].snapshot(i, nowNanos, errorHalfLifeMillis));
+        }
+        return statsList;
+    }
+
+    /**
+     * 当前尝试的顺序，从好到差
+     */
+    public int[] getRankedOrder() {
+        long nowNanos = System.nanoTime();
+        Integer[] order = new Integer[targetStats.length];
+        int[] tiers = new int[targetStats.length];
+        double[] scores = new double[targetStats.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            targetStats[i].rank(nowNanos, errorHalfLifeMillis, errorThreshold, tiers, scores, i);
+        }
+        //稳定排序，先按档，同一档内按评分，评分相同时按传入顺序
+        Arrays.sort(order, (a, b) -> tiers[a] != tiers[b]
+                ? Integer.compare(tiers[a], tiers[b])
+                : Double.compare(scores[a], scores[b]));
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    @Override
+    public void onDoOperation(T t, OperationCallBack<F, S> operationCallBack) {
+        if (listenerList.isEmpty()) {
+            return;
+        }
+        tryTarget(t, operationCallBack, getRankedOrder(), 0);
+    }
+
+    private void tryTarget(T t, OperationCallBack<F, S> operationCallBack, int[] order, int position) {
+        int index = order[position];
+        TargetStats stats = targetStats[index];
+        long start = System.nanoTime();
+        AtomicBoolean isDone = new AtomicBoolean();
+        try {
+            listenerList.get(index).onDoOperation(t, new OperationCallBack<F, S>() {
+                @Override
+                public void onFailed(F failedBean) {
+                    if (!isDone.compareAndSet(false, true)) {
+                        return;
+                    }
+                    stats.record(System.nanoTime() - start, true, alpha, errorHalfLifeMillis);
+                    if (position + 1 < order.length) {
+                        //转移到下一个实现
+                        tryTarget(t, operationCallBack, order, position + 1);
+                        return;
+                    }
+                    operationCallBack.onFailed(failedBean);
+                }
+
+                @Override
+                public void onSuccess(S successBean) {
+                    if (!isDone.compareAndSet(false, true)) {
+                        return;
+                    }
+                    stats.record(System.nanoTime() - start, false, alpha, errorHalfLifeMillis);
+                    operationCallBack.onSuccess(successBean);
+                }
+            });
+        } catch (RuntimeException exception) {
+            if (!isDone.compareAndSet(false, true)) {
+                throw exception;
+            }
+            stats.record(System.nanoTime() - start, true, alpha, errorHalfLifeMillis);
+            if (position + 1 < order.length) {
+                tryTarget(t, operationCallBack, order, position + 1);
+                return;
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * 单个实现的统计
+     */
+    private static class TargetStats {
+
+        static final int TIER_HEALTHY = 0;
+        static final int TIER_UNPROBED = 1;
+        static final int TIER_UNHEALTHY = 2;
+
+        /**
+         * 只统计成功调用的耗时
+         */
+        private double ewmaLatencyMillis;
+        private double ewmaErrorRate;
+        /**
+         * 最近一次更新的时间  单调时钟，不受修改系统时间影响
+         */
+        private long updateTimeNanos;
+        private long callCount;
+        private long failedCount;
+
+        synchronized void record(long latencyNanos, boolean isFailed, double alpha, long halfLifeMillis) {
+            long nowNanos = System.nanoTime();
+            double errorRate = decayedErrorRate(nowNanos, halfLifeMillis);
+            if (!isFailed) {
+                double latencyMillis = latencyNanos / 1_000_000.0;
+                boolean isFirstSuccess = callCount == failedCount;
+                ewmaLatencyMillis = isFirstSuccess ? latencyMillis : ewmaLatencyMillis + alpha * (latencyMillis - ewmaLatencyMillis);
+            }
+            ewmaErrorRate = callCount == 0 ? (isFailed ? 1 : 0) : errorRate + alpha * ((isFailed ? 1 : 0) - errorRate);
+            updateTimeNanos = nowNanos;
+            callCount++;
+            if (isFailed) {
+                failedCount++;
+            }
+        }
+
+        /**
+         * 计算所在的档和档内的评分
+         */
+        synchronized void rank(long nowNanos, long halfLifeMillis, double errorThreshold, int[] tiers, double[] scores, int index) {
+            if (callCount == 0) {
+                tiers[index] = TIER_UNPROBED;
+                scores[index] = 0;
+                return;
+            }
+            double errorRate = decayedErrorRate(nowNanos, halfLifeMillis);
+            if (errorRate > errorThreshold) {
+                tiers[index] = TIER_UNHEALTHY;
+                scores[index] = errorRate;
+                return;
+            }
+            if (callCount == failedCount) {
+                //失败已经衰减，但还没有成功过，不知道耗时
+                tiers[index] = TIER_UNPROBED;
+                scores[index] = 0;
+                return;
+            }
+            tiers[index] = TIER_HEALTHY;
+            scores[index] = ewmaLatencyMillis / (1 - errorRate);
+        }
+
+        synchronized TargetStatsBean snapshot(int index, long nowNanos, long halfLifeMillis) {
+            return new TargetStatsBean(index, ewmaLatencyMillis, decayedErrorRate(nowNanos, halfLifeMillis), callCount, failedCount);
+        }
+
+        private double decayedErrorRate(long nowNanos, long halfLifeMillis) {
+            if (callCount == 0) {
+                //还没有更新过，updateTimeNanos 没有意义
+                return ewmaErrorRate;
+            }
+            double elapsedMillis = Math.max(0, nowNanos - updateTimeNanos) / 1_000_000.0;
+            return ewmaErrorRate * Math.pow(0.5, elapsedMillis / halfLifeMillis);
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.hero.retrywhendo;
+
+import android.util.Log;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+import com.hero.retrywhendo.interfaces.ParkedFinalCallBack;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * <pre>
+ * 等待重试的执行只保存为紧凑的记录
+ * RetryWhenDoOperationHelper 在等待重试期间，整条 rxjava 链（create、retryWhen、zipWith、concatMap、timer）
+ * 以及 Builder、回调、参数都一直被持有，大量执行同时等待重试时占用的内存很可观。
+ * 这里同一类操作共用一个注册的 Builder（模板），等待重试的执行只保存为：
+ * 参数的引用、第几次重试、到期时间、执行id，存放在基本类型数组组成的最小堆中；
+ * 只有一个定时器等待最早到期的记录，到期后才重新创建回调、执行操作。
+ *
+ * 模板只使用 Builder 中的：操作接口、最终回调、重试列表、单位、执行线程、回调线程（或 CallBackDispatcher）、是否调试，
+ * Builder 中的参数不使用，每次执行时传入；闸门、追踪、组、兜底、超时、自适应间隔、优先级等不支持。
+ * 批量操作（setOnDoBatchOperationListener）不支持，register() 时抛出 IllegalArgumentException：
+ * 它的进度属于每个执行，而这里的记录不保存操作的状态，同一个模板的执行会共用进度。
+ * 等待重试的记录数不超过 maxParked，超过时该执行以 RejectedExecutionException 回调 onError。
+ *
+ * 同一个模板的执行共用模板的回调，需要区分每个执行的结果时，注册时传入 ParkedFinalCallBack，回调中带有执行id和参数。
+ *
+ * 与 RetryWhenDoOperationHelper 相比的限制：
+ * 1、setDelay 不生效，execute() 立即执行第一次操作；
+ * 2、execute() 不返回 Disposable，也没有 stopNow()：cancel() 只能移除等待重试的记录，
+ * 正在执行的操作无法单独停止，它结束后仍会回调，失败时也仍会等待重试；只能通过 cancelAll() 或 unregister() 整体丢弃；
+ * 3、不跟随 setOwner 的生命周期，需要在页面销毁时自己调用 cancelAll()。
+ * </pre>
+ */
+public class ParkedRetryStore {
+
+    private final String TAG = "ParkedRetryStore";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxParked;
+
+    /**
+     * 定时器所在的线程
+     */
+    private final Scheduler timerScheduler;
+
+    /**
+     * 以下字段都由 this 保护
+     * 最小堆，按到期时间排序，同一下标的各个数组组成一条记录
+     */
+    private long[] dueNanos = new long[INITIAL_CAPACITY];
+    private long[] executionIds = new long[INITIAL_CAPACITY];
+    private int[] attempts = new int[INITIAL_CAPACITY];
+    private int[] templateIds = new int[INITIAL_CAPACITY];
+    private Object[] params = new Object[INITIAL_CAPACITY];
+    private int size;
+
+    private Builder[] templates = new Builder[4];
+
+    /**
+     * 模板的带执行id的回调，可以为空
+     */
+    private ParkedFinalCallBack[] resultCallBacks = new ParkedFinalCallBack[4];
+    private int templateCount;
+
+    private long executionSequence;
+
+    /**
+     * 定时器及其到期时间
+     */
+    private Disposable timerDisposable;
+    private long timerDueNanos;
+
+    /**
+     * cancelAll() 后递增，之前正在执行的操作的回调丢弃
+     */
+    private volatile int generation;
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * @param maxParked 最多保存多少个等待重试的记录
+     */
+    public ParkedRetryStore(int maxParked) {
+        this(maxParked, Schedulers.computation());
+    }
+
+    /**
+     * @param timerScheduler 定时器所在的线程，默认computation线程
+     */
+    public ParkedRetryStore(int maxParked, Scheduler timerScheduler) {
+        this.maxParked = Math.max(1, maxParked);
+        this.timerScheduler = timerScheduler != null ? timerScheduler : Schedulers.computation();
+    }
+
+    /**
+     * 注册模板  结果回调给 Builder 中的 FinalCallBack
+     *
+     * @return 模板id，用于 execute()
+     */
+    public int register(Builder builder) {
+        return register(builder, null);
+    }
+
+    /**
+     * 注册模板
+     *
+     * @param resultCallBack 不为空时结果回调给它（带执行id和参数），不再回调 Builder 中的 FinalCallBack
+     * @return 模板id，用于 execute()
+     * @throws IllegalArgumentException builder 或操作接口为空，或者是批量操作
+     */
+    public synchronized int register(Builder builder, ParkedFinalCallBack resultCallBack) {
+        if (builder == null || builder.getOnDoOperationListener() == null) {
+            throw new IllegalArgumentException("builder 或 onDoOperationListener 为空");
+        }
+        if (builder.getOnDoOperationListener() instanceof BatchOperationAdapter) {
+            throw new IllegalArgumentException("不支持批量操作，每个执行的进度无法保存在记录中");
+        }
+        if (templateCount == templates.length) {
+            templates = Arrays.copyOf(templates, templateCount * 2);
+            resultCallBacks = Arrays.copyOf(resultCallBacks, templateCount * 2);
+        }
+        templates[templateCount] = builder;
+        resultCallBacks[templateCount] = resultCallBack;
+        return templateCount++;
+    }
+
+    /**
+     * 注销模板，丢弃它等待重试的记录，正在执行的操作的结果也不再回调
+     */
+    public synchronized void unregister(int templateId) {
+        if (templateId < 0 || templateId >= templateCount || templates[templateId] == null) {
+            return;
+        }
+        templates[templateId] = null;
+        resultCallBacks[templateId] = null;
+        //先把保留的记录移到前面，再重新建堆；逐个 removeAt 会把未检查的记录移到已经检查过的位置
+        int keptCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (templateIds[i] != templateId) {
+                if (keptCount != i) {
+                    move(i, keptCount);
+                }
+                keptCount++;
+            }
+        }
+        Arrays.fill(params, keptCount, size, null);
+        size = keptCount;
+        heapify();
+        shrink();
+        rescheduleTimer();
+    }
+
+    /**
+     * 立即执行一次操作，失败后按模板的重试列表等待重试
+     *
+     * @param param 操作所携带的参数
+     * @return 执行id，用于 cancel()
+     */
+    public long execute(int templateId, Object param) {
+        Builder builder;
+        ParkedFinalCallBack resultCallBack;
+        long executionId;
+        synchronized (this) {
+            builder = getTemplate(templateId);
+            if (builder == null) {
+                throw new IllegalArgumentException("模板未注册：" + templateId);
+            }
+            resultCallBack = resultCallBacks[templateId];
+            executionId = ++executionSequence;
+        }
+        doOperation(builder, resultCallBack, templateId, executionId, param, 0, generation);
+        return executionId;
+    }
+
+    /**
+     * 取消等待重试的执行  需要遍历，不适合频繁调用
+     *
+     * @return 是否找到，正在执行中的操作不会被取消
+     */
+    public synchronized boolean cancel(long executionId) {
+        for (int i = 0; i < size; i++) {
+            if (executionIds[i] == executionId) {
+                removeAt(i);
+                rescheduleTimer();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取消全部，正在执行的操作的结果也不再回调
+     */
+    public synchronized void cancelAll() {
+        generation++;
+        Arrays.fill(params, 0, size, null);
+        size = 0;
+        shrink();
+        rescheduleTimer();
+    }
+
+    /**
+     * 等待重试的记录数
+     */
+    public synchronized int getParkedCount() {
+        return size;
+    }
+
+    /**
+     * 正在执行的操作数
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    private Builder getTemplate(int templateId) {
+        return templateId >= 0 && templateId < templateCount ? templates[templateId] : null;
+    }
+
+    /**
+     * 在执行线程中执行操作，每次操作使用新的回调
+     */
+    private void doOperation(Builder builder, ParkedFinalCallBack resultCallBack, int templateId, long executionId,
+                             Object param, int attempt, int generation) {
+        Scheduler subscribeOnScheduler = builder.getSubscribeOnScheduler();
+        if (subscribeOnScheduler == null) {
+            subscribeOnScheduler = Schedulers.io();
+        }
+        inFlightCount.incrementAndGet();
+        subscribeOnScheduler.scheduleDirect(() -> {
+            ParkedAttemptCallBack attemptCallBack = new ParkedAttemptCallBack(builder, resultCallBack,
+                    templateId, executionId, param, attempt, generation);
+            try {
+                builder.getOnDoOperationListener().onDoOperation(param, attemptCallBack);
+            } catch (RuntimeException exception) {
+                if (builder.isDebug()) {
+                    Log.e(TAG, "doOperation()", exception);
+                }
+                if (attemptCallBack.compareAndSet(false, true)) {
+                    attemptCallBack.onAttemptFinished();
+                    onAttemptFailed(attemptCallBack, null, exception);
+                }
+            }
+        });
+    }
+
+    private boolean isStale(ParkedAttemptCallBack attemptCallBack) {
+        if (attemptCallBack.generation != generation) {
+            return true;
+        }
+        synchronized (this) {
+            return getTemplate(attemptCallBack.templateId) != attemptCallBack.builder;
+        }
+    }
+
+    private void onAttemptFailed(ParkedAttemptCallBack attemptCallBack, Object failedBean, Throwable error) {
+        if (isStale(attemptCallBack)) {
+            return;
+        }
+        Builder builder = attemptCallBack.builder;
+        List<Integer> delayTimeList = builder.getDelayTimeList();
+        int attempt = attemptCallBack.attempt;
+        if (attempt >= delayTimeList.size()) {
+            //重试列表已经都重试完了
+            if (error != null) {
+                postCallBack(attemptCallBack, RetryGroup.RESULT_ERROR, error);
+            } else {
+                postCallBack(attemptCallBack, RetryGroup.RESULT_FAILED, failedBean);
+            }
+            return;
+        }
+        long delayNanos = builder.getUnit().toNanos(delayTimeList.get(attempt));
+        if (builder.isDebug()) {
+            Log.i(TAG, String.format("%d纳秒后重试，线程：%s", delayNanos, Thread.currentThread().getName()));
+        }
+        if (!park(attemptCallBack, System.nanoTime() + delayNanos)) {
+            postCallBack(attemptCallBack, RetryGroup.RESULT_ERROR,
+                    new RejectedExecutionException("等待重试的记录已满：" + maxParked));
+        }
+    }
+
+    /**
+     * 保存为等待重试的记录
+     *
+     * @return 是否保存成功，已满返回 false
+     */
+    private synchronized boolean park(ParkedAttemptCallBack attemptCallBack, long due) {
+        if (attemptCallBack.generation != generation) {
+            //已经取消，不需要回调
+            return true;
+        }
+        if (size == maxParked) {
+            return false;
+        }
+        if (size == dueNanos.length) {
+            resize(Math.min(maxParked, size * 2));
+        }
+        int index = size++;
+        set(index, due, attemptCallBack.executionId, attemptCallBack.attempt + 1,
+                attemptCallBack.templateId, attemptCallBack.param);
+        siftUp(index);
+        if (timerDisposable == null || due < timerDueNanos) {
+            rescheduleTimer();
+        }
+        return true;
+    }
+
+    /**
+     * 定时器到期，取出所有到期的记录重新执行
+     */
+    private void onTimer() {
+        Builder[] dueBuilders;
+        ParkedFinalCallBack[] dueResultCallBacks;
+        long[] dueExecutionIds;
+        int[] dueAttempts;
+        int[] dueTemplateIds;
+        Object[] dueParams;
+        int dueCount = 0;
+        int dueGeneration;
+        synchronized (this) {
+            timerDisposable = null;
+            long now = System.nanoTime();
+            int capacity = INITIAL_CAPACITY;
+            dueBuilders = new Builder[capacity];
+            dueResultCallBacks = new ParkedFinalCallBack[capacity];
+            dueExecutionIds = new long[capacity];
+            dueAttempts = new int[capacity];
+            dueTemplateIds = new int[capacity];
+            dueParams = new Object[capacity];
+            while (size > 0 && dueNanos[0] - now <= 0) {
+                if (dueCount == capacity) {
+                    capacity *= 2;
+                    dueBuilders = Arrays.copyOf(dueBuilders, capacity);
+                    dueResultCallBacks = Arrays.copyOf(dueResultCallBacks, capacity);
+                    dueExecutionIds = Arrays.copyOf(dueExecutionIds, capacity);
+                    dueAttempts = Arrays.copyOf(dueAttempts, capacity);
+                    dueTemplateIds = Arrays.copyOf(dueTemplateIds, capacity);
+                    dueParams = Arrays.copyOf(dueParams, capacity);
+                }
+                dueBuilders[dueCount] = templates[templateIds[0]];
+                dueResultCallBacks[dueCount] = resultCallBacks[templateIds[0]];
+                dueExecutionIds[dueCount] = executionIds[0];
+                dueAttempts[dueCount] = attempts[0];
+                dueTemplateIds[dueCount] = templateIds[0];
+                dueParams[dueCount] = params[0];
+                dueCount++;
+                removeAt(0);
+            }
+            dueGeneration = generation;
+            rescheduleTimer();
+        }
+        for (int i = 0; i < dueCount; i++) {
+            if (dueBuilders[i] != null) {
+                doOperation(dueBuilders[i], dueResultCallBacks[i], dueTemplateIds[i], dueExecutionIds[i], dueParams[i], dueAttempts[i], dueGeneration);
+            }
+        }
+    }
+
+    /**
+     * 按堆顶的到期时间重新设置定时器，调用方持有 this
+     */
+    private void rescheduleTimer() {
+        if (timerDisposable != null) {
+            if (size > 0 && timerDueNanos == dueNanos[0]) {
+                return;
+            }
+            timerDisposable.dispose();
+            timerDisposable = null;
+        }
+        if (size == 0) {
+            return;
+        }
+        timerDueNanos = dueNanos[0];
+        long delayNanos = Math.max(0, timerDueNanos - System.nanoTime());
+        timerDisposable = timerScheduler.scheduleDirect(this::onTimer, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 回调最终结果  有 ParkedFinalCallBack 时回调它，否则回调 Builder 中的 FinalCallBack
+     *
+     * @param result RetryGroup.RESULT_*
+     * @param bean   成功、失败的数据或异常
+     */
+    private void postCallBack(ParkedAttemptCallBack attemptCallBack, int result, Object bean) {
+        Builder builder = attemptCallBack.builder;
+        ParkedFinalCallBack resultCallBack = attemptCallBack.resultCallBack;
+        FinalCallBack finalCallBack = builder.getFinalCallBack();
+        if (resultCallBack == null && finalCallBack == null) {
+            return;
+        }
+        long executionId = attemptCallBack.executionId;
+        Object param = attemptCallBack.param;
+        Runnable runnable = () -> {
+            try {
+                if (resultCallBack != null) {
+                    if (result == RetryGroup.RESULT_SUCCESS) {
+                        resultCallBack.onSuccess(executionId, param, bean);
+                    } else if (result == RetryGroup.RESULT_FAILED) {
+                        resultCallBack.onFailed(executionId, param, bean);
+                    } else {
+                        resultCallBack.onError(executionId, param, (Throwable) bean);
+                    }
+                } else if (result == RetryGroup.RESULT_SUCCESS) {
+                    finalCallBack.onSuccess(bean);
+                } else if (result == RetryGroup.RESULT_FAILED) {
+                    finalCallBack.onFailed(bean);
+                } else {
+                    finalCallBack.onError((Throwable) bean);
+                }
+            } catch (Throwable throwable) {
+                //与 RetryWhenDoOperationHelper 一样交给 RxJavaPlugins，不吞掉回调中的异常
+                RxJavaPlugins.onError(throwable);
+            }
+        };
+        CallBackDispatcher callBackDispatcher = builder.getCallBackDispatcher();
+        if (callBackDispatcher != null) {
+            callBackDispatcher.dispatch(runnable);
+            return;
+        }
+        Scheduler observeOnScheduler = builder.getObserveOnScheduler();
+        if (observeOnScheduler != null) {
+            observeOnScheduler.scheduleDirect(runnable);
+            return;
+        }
+        runnable.run();
+    }
+
+    private void set(int index, long due, long executionId, int attempt, int templateId, Object param) {
+        dueNanos[index] = due;
+        executionIds[index] = executionId;
+        attempts[index] = attempt;
+        templateIds[index] = templateId;
+        params[index] = param;
+    }
+
+    private void move(int from, int to) {
+        set(to, dueNanos[from], executionIds[from], attempts[from], templateIds[from], params[from]);
+    }
+
+    /**
+     * 从最后一个非叶子节点开始下沉，重新建堆
+     */
+    private void heapify() {
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void removeAt(int index) {
+        int last = --size;
+        if (index != last) {
+            move(last, index);
+            params[last] = null;
+            if (!siftUp(index)) {
+                siftDown(index);
+            }
+        } else {
+            params[last] = null;
+        }
+        shrink();
+    }
+
+    /**
+     * @return 是否移动过
+     */
+    private boolean siftUp(int index) {
+        int start = index;
+        long due = dueNanos[index];
+        long executionId = executionIds[index];
+        int attempt = attempts[index];
+        int templateId = templateIds[index];
+        Object param = params[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (dueNanos[parent] - due <= 0) {
+                break;
+            }
+            move(parent, index);
+            index = parent;
+        }
+        set(index, due, executionId, attempt, templateId, param);
+        return index != start;
+    }
+
+    private void siftDown(int index) {
+        long due = dueNanos[index];
+        long executionId = executionIds[index];
+        int attempt = attempts[index];
+        int templateId = templateIds[index];
+        Object param = params[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && dueNanos[right] - dueNanos[child] < 0) {
+                child = right;
+            }
+            if (due - dueNanos[child] <= 0) {
+                break;
+            }
+            move(child, index);
+            index = child;
+        }
+        set(index, due, executionId, attempt, templateId, param);
+    }
+
+    /**
+     * 记录数少于容量的1/4时减半，等待重试的记录减少后释放内存
+     */
+    private void shrink() {
+        int capacity = dueNanos.length;
+        if (capacity > INITIAL_CAPACITY && size < capacity / 4) {
+            resize(Math.max(INITIAL_CAPACITY, capacity / 2));
+        }
+    }
+
+    private void resize(int capacity) {
+        dueNanos = Arrays.copyOf(dueNanos, capacity);
+        executionIds = Arrays.copyOf(executionIds, capacity);
+        attempts = Arrays.copyOf(attempts, capacity);
+        templateIds = Arrays.copyOf(templateIds, capacity);
+        params = Arrays.copyOf(params, capacity);
+    }
+
+    /**
+     * 单次操作的回调，只在操作进行中存在
+     * 继承 AtomicBoolean 表示是否已经回调，重复的回调丢弃
+     */
+    private class ParkedAttemptCallBack extends AtomicBoolean implements OperationCallBack {
+        private final Builder builder;
+        private final ParkedFinalCallBack resultCallBack;
+        private final int templateId;
+        private final long executionId;
+        private final Object param;
+        private final int attempt;
+        private final int generation;
+
+        ParkedAttemptCallBack(Builder builder, ParkedFinalCallBack resultCallBack, int templateId, long executionId,
+                              Object param, int attempt, int generation) {
+            this.builder = builder;
+            this.resultCallBack = resultCallBack;
+            this.templateId = templateId;
+            this.executionId = executionId;
+            this.param = param;
+            this.attempt = attempt;
+            this.generation = generation;
+        }
+
+        void onAttemptFinished() {
+            inFlightCount.decrementAndGet();
+        }
+
+        @Override
+        public void onFailed(Object failedBean) {
+            if (!compareAndSet(false, true)) {
+                return;
+            }
+            onAttemptFinished();
+            if (builder.isDebug()) {
+                Log.i(TAG, "onFailed failedBean:"
+                        + JsonUtils.javabeanToJson(failedBean) + " Thread:" + Thread.currentThread().getName());
+            }
+            onAttemptFailed(this, failedBean, null);
+        }
+
+        @Override
+        public void onSuccess(Object successBean) {
+            if (!compareAndSet(false, true)) {
+                return;
+            }
+            onAttemptFinished();
+            if (isStale(this)) {
+                return;
+            }
+            postCallBack(this, RetryGroup.RESULT_SUCCESS, successBean);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.hero.retrywhendo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * <pre>
+ * 按优先级调度到期的操作
+ * 默认所有操作和重试都按先进先出交给 subscribeOnScheduler，故障恢复期间后台同步的重试会挤占用户发起的操作。
+ * 多个执行共用一个 PriorityRetryScheduler 后：
+ * 1、按优先级严格排序，INTERACTIVE > DEFAULT > BACKGROUND；
+ * 2、同一优先级中，第一次操作排在重试之前，用户刚发起的操作不必排在积压的重试后面；
+ * 3、同一优先级中，不同 key 之间按加权公平排队（开始时间公平排队），一个频繁失败的 key 不会独占；
+ * 4、同时执行的操作数不超过 maxConcurrency；
+ * 5、统计每个优先级的排队等待时间。
+ * </pre>
+ */
+public class PriorityRetryScheduler {
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    private final Scheduler scheduler;
+
+    private final int maxConcurrency;
+
+    /**
+     * 以下字段都由 this 保护
+     */
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+
+    /**
+     * 每个优先级的虚拟时间
+     */
+    private final double[] virtualTimes = new double[PRIORITY_COUNT];
+
+    /**
+     * 每个优先级中每个 key 最后一个任务的结束标记
+     */
+    private final Map<String, KeyState>[] keyStates;
+
+    private final Map<String, Double> keyWeights = new HashMap<>();
+
+    private int runningCount;
+
+    private long sequence;
+
+    private final long[] waitCounts = new long[PRIORITY_COUNT];
+    private final long[] waitTotalNanos = new long[PRIORITY_COUNT];
+    private final long[] waitMaxNanos = new long[PRIORITY_COUNT];
+
+    /**
+     * @param scheduler      执行操作的线程，默认io线程
+     * @param maxConcurrency 同时执行的操作数上限
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityRetryScheduler(Scheduler scheduler, int maxConcurrency) {
+        this.scheduler = scheduler != null ? scheduler : Schedulers.io();
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        keyStates = new Map[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            keyStates[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * key 的权重，默认1，权重越大分到的份额越多
+     */
+    public synchronized PriorityRetryScheduler setKeyWeight(String key, double weight) {
+        if (key != null && weight > 0) {
+            keyWeights.put(key, weight);
+        }
+        return this;
+    }
+
+    /**
+     * 提交到期的操作
+     *
+     * @param isFirstAttempt 是否为第一次操作（非重试）
+     */
+    void submit(int priority, String key, boolean isFirstAttempt, Runnable runnable) {
+        int level = Math.max(0, Math.min(PRIORITY_COUNT - 1, priority));
+        String taskKey = key == null ? "" : key;
+        boolean isStartDrain;
+        synchronized (this) {
+            KeyState keyState = keyStates[level].get(taskKey);
+            if (keyState == null) {
+                keyState = new KeyState();
+                keyStates[level].put(taskKey, keyState);
+            }
+            Double weight = keyWeights.get(taskKey);
+            double startTag = Math.max(virtualTimes[level], keyState.lastFinishTag);
+            keyState.lastFinishTag = startTag + 1 / (weight == null ? 1 : weight);
+            keyState.pendingCount++;
+
+            queue.offer(new Task(level, isFirstAttempt, startTag, ++sequence, taskKey, runnable));
+            isStartDrain = runningCount < maxConcurrency;
+            if (isStartDrain) {
+                runningCount++;
+            }
+        }
+        if (isStartDrain) {
+            scheduler.scheduleDirect(this::drain);
+        }
+    }
+
+    private void drain() {
+        for (; ; ) {
+            Task task;
+            synchronized (this) {
+                task = queue.poll();
+                if (task == null) {
+                    runningCount--;
+                    return;
+                }
+                virtualTimes[task.priority] = Math.max(virtualTimes[task.priority], task.startTag);
+                KeyState keyState = keyStates[task.priority].get(task.key);
+                if (keyState != null && --keyState.pendingCount == 0) {
+                    //没有排队的任务了，不再保留，避免 key 越来越多
+                    keyStates[task.priority].remove(task.key);
+                }
+                long waitNanos = System.nanoTime() - task.enqueueNanos;
+                waitCounts[task.priority]++;
+                waitTotalNanos[task.priority] += waitNanos;
+                waitMaxNanos[task.priority] = Math.max(waitMaxNanos[task.priority], waitNanos);
+            }
+            try {
+                task.runnable.run();
+            } catch (Throwable throwable) {
+                //交给 RxJavaPlugins，不吞掉操作中的异常；剩下的任务继续执行
+                RxJavaPlugins.onError(throwable);
+            }
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public synchronized long getQueueWaitCount(int priority) {
+        return waitCounts[priority];
+    }
+
+    /**
+     * 平均排队等待时间，毫秒
+     */
+    public synchronized double getAverageQueueWaitMillis(int priority) {
+        long count = waitCounts[priority];
+        return count == 0 ? 0 : waitTotalNanos[priority] / 1_000_000.0 / count;
+    }
+
+    /**
+     * 最长排队等待时间，毫秒
+     */
+    public synchronized double getMaxQueueWaitMillis(int priority) {
+        return waitMaxNanos[priority] / 1_000_000.0;
+    }
+
+    public synchronized void resetQueueWaitStats() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            waitCounts[i] = 0;
+            waitTotalNanos[i] = 0;
+            waitMaxNanos[i] = 0;
+        }
+    }
+
+    private static class KeyState {
+        private double lastFinishTag;
+        private int pendingCount;
+    }
+
+    private static class Task implements Comparable<Task> {
+        private final int priority;
+        private final boolean isFirstAttempt;
+        private final double startTag;
+        private final long sequence;
+        private final String key;
+        private final Runnable runnable;
+        private final long enqueueNanos = System.nanoTime();
+
+        Task(int priority, boolean isFirstAttempt, double startTag, long sequence, String key, Runnable runnable) {
+            this.priority = priority;
+            this.isFirstAttempt = isFirstAttempt;
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.key = key;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            if (isFirstAttempt != other.isFirstAttempt) {
+                return isFirstAttempt ? -1 : 1;
+            }
+            int compare = Double.compare(startTag, other.startTag);
+            if (compare != 0) {
+                return compare;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.hero.retrywhendo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.BehaviorSubject;
+
+/**
+ * <pre>
+ * 重试闸门
+ * 闸门关闭时（如断网、依赖服务不可用），到期的重试不会执行，而是挂起等待闸门打开；
+ * 挂起期间只是订阅了状态信号，不占用线程也不占用定时器。
+ * 闸门重新打开时，挂起的重试一起放行，并按 stagger 间隔错开启动，避免瞬间扎堆请求。
+ *
+ * 两种用法：
+ * 1、RetryGate.from(signal) 跟随外部可用性信号，true 为打开；
+ * 2、RetryGate.create() 手动调用 open()/close()，测试时可作为本地替身信号。
+ *
+ * 外部信号出错时闸门打开（失败即放行），并把异常交给 RxJavaPlugins；
+ * 否则闸门会停在关闭状态，挂起的重试没有超时，会一直等待。
+ * </pre>
+ */
+public class RetryGate {
+
+    /**
+     * 当前闸门状态，默认打开
+     */
+    private final BehaviorSubject<Boolean> state = BehaviorSubject.createDefault(true);
+
+    /**
+     * 本批次放行的序号，用来计算错开的时间
+     */
+    private final AtomicInteger releaseIndex = new AtomicInteger();
+
+    /**
+     * 错开启动的间隔，默认200毫秒
+     */
+    private volatile long staggerMillis = 200;
+
+    /**
+     * 外部信号的订阅
+     */
+    private volatile Disposable signalDisposable;
+
+    private RetryGate() {
+    }
+
+    /**
+     * 手动控制的闸门
+     */
+    public static RetryGate create() {
+        return new RetryGate();
+    }
+
+    /**
+     * 跟随外部可用性信号的闸门
+     *
+     * @param signal true 打开，false 关闭；出错时闸门打开，之后不再跟随
+     */
+    public static RetryGate from(Observable<Boolean> signal) {
+        RetryGate retryGate = new RetryGate();
+        if (signal != null) {
+            retryGate.signalDisposable = signal
+                    .distinctUntilChanged()
+                    .subscribe(retryGate::setOpen, throwable -> {
+                        //信号已经不可用，放行挂起的重试，避免永远等待
+                        retryGate.setOpen(true);
+                        RxJavaPlugins.onError(throwable);
+                    });
+        }
+        return retryGate;
+    }
+
+    public void open() {
+        setOpen(true);
+    }
+
+    public void close() {
+        setOpen(false);
+    }
+
+    public boolean isOpen() {
+        Boolean value = state.getValue();
+        return value == null || value;
+    }
+
+    /**
+     * 放行时错开启动的间隔
+     */
+    public RetryGate setStagger(long stagger, TimeUnit unit) {
+        if (stagger >= 0 && unit != null) {
+            this.staggerMillis = unit.toMillis(stagger);
+        }
+        return this;
+    }
+
+    public long getStaggerMillis() {
+        return staggerMillis;
+    }
+
+    /**
+     * 取消对外部信号的订阅，闸门保持最后的状态
+     */
+    public void dispose() {
+        Disposable disposable = signalDisposable;
+        if (disposable != null) {
+            disposable.dispose();
+        }
+    }
+
+    private synchronized void setOpen(boolean open) {
+        if (open == isOpen()) {
+            return;
+        }
+        if (open) {
+            //新的一批放行，从0开始错开
+            releaseIndex.set(0);
+        }
+        state.onNext(open);
+    }
+
+    /**
+     * 等待闸门打开
+     * 打开时立即发射；关闭时挂起，打开后按本批次的序号错开发射
+     */
+    Observable<Long> awaitOpen() {
+        return Observable.defer(() -> {
+            if (isOpen()) {
+                return Observable.just(0L);
+            }
+            return state.filter(open -> open)
+                    .take(1)
+                    .concatMap(open -> {
+                        long stagger = releaseIndex.getAndIncrement() * staggerMillis;
+                        if (stagger <= 0) {
+                            return Observable.just(0L);
+                        }
+                        return Observable.timer(stagger, TimeUnit.MILLISECONDS, Schedulers.computation());
+                    });
+        });
+    }
+}
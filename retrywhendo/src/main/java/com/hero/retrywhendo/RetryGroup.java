@@ -0,0 +1,240 @@
+package com.hero.retrywhendo;
+
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import autodispose2.ScopeProvider;
+import autodispose2.androidx.lifecycle.AndroidLifecycleScopeProvider;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.disposables.CompositeDisposable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+
+/**
+ * <pre>
+ * 一组执行的生命周期管理
+ * 每个执行单独 setOwner 时，都会创建自己的 AndroidLifecycleScopeProvider 和 AutoDispose 订阅，
+ * 在子线程中还要先切换到主线程再订阅；一个页面有大量执行时开销明显。
+ * RetryGroup 只观察一次生命周期（或 ScopeProvider），加入的执行记录在无锁的集合中，
+ * 生命周期结束时统一停止（包括组内的轮询）；也可以手动 cancelAll()，或通过 awaitAll() 等待全部结束。
+ *
+ * 注意：from(LifecycleOwner) 需要在主线程中调用（如 onCreate 中）。
+ * </pre>
+ */
+public class RetryGroup {
+
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_ERROR = 2;
+    static final int RESULT_CANCELLED = 3;
+
+    /**
+     * 正在执行的
+     */
+    private final ConcurrentSkipListMap<Long, RetryWhenDoOperationHelper> executionMap = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong idGenerator = new AtomicLong();
+
+    /**
+     * 组内的轮询，两次执行之间不在 executionMap 中，单独记录
+     */
+    private final CompositeDisposable pollingDisposables = new CompositeDisposable();
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+
+    /**
+     * 全部执行结束时发射  可能在多个结束线程中同时发射，需要串行化
+     */
+    private final Subject<Integer> idleSubject = PublishSubject.<Integer>create().toSerialized();
+
+    /**
+     * 已经取消，之后加入的执行直接停止
+     */
+    private volatile boolean isCancelled;
+
+    private volatile Disposable scopeDisposable;
+
+    private RetryGroup() {
+    }
+
+    /**
+     * 手动管理的组
+     */
+    public static RetryGroup create() {
+        return new RetryGroup();
+    }
+
+    /**
+     * 跟随生命周期的组  需要在主线程中调用
+     *
+     * @param owner
+     * @return
+     */
+    public static RetryGroup from(LifecycleOwner owner) {
+        return from(AndroidLifecycleScopeProvider.from(owner));
+    }
+
+    /**
+     * 跟随作用域的组，作用域结束时停止全部执行
+     *
+     * @param scopeProvider
+     * @return
+     */
+    public static RetryGroup from(ScopeProvider scopeProvider) {
+        RetryGroup retryGroup = new RetryGroup();
+        Completable scope;
+        try {
+            scope = Completable.wrap(scopeProvider.requestScope());
+        } catch (Exception exception) {
+            //作用域已经结束
+            retryGroup.cancelAll();
+            return retryGroup;
+        }
+        retryGroup.scopeDisposable = scope.subscribe(retryGroup::cancelAll, throwable -> retryGroup.cancelAll());
+        return retryGroup;
+    }
+
+    /**
+     * 加入执行
+     *
+     * @return 在组中的id，组已经取消时返回 -1
+     */
+    long add(RetryWhenDoOperationHelper helper) {
+        if (isCancelled) {
+            return -1;
+        }
+        long id = idGenerator.incrementAndGet();
+        activeCount.incrementAndGet();
+        executionMap.put(id, helper);
+        if (isCancelled && executionMap.remove(id) != null) {
+            //加入的同时组被取消了
+            onRemoved(RESULT_CANCELLED);
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * 加入轮询，组取消时停止
+     *
+     * @return 组已经取消时返回 false，轮询已被停止
+     */
+    boolean addPolling(Disposable polling) {
+        if (isCancelled) {
+            polling.dispose();
+            return false;
+        }
+        //组已经取消时 add 会直接停止它
+        return pollingDisposables.add(polling);
+    }
+
+    /**
+     * 轮询已经停止
+     */
+    void removePolling(Disposable polling) {
+        pollingDisposables.delete(polling);
+    }
+
+    /**
+     * 执行结束  同一个id只统计一次
+     */
+    void onFinished(long id, int result) {
+        if (id <= 0 || executionMap.remove(id) == null) {
+            return;
+        }
+        onRemoved(result);
+    }
+
+    private void onRemoved(int result) {
+        switch (result) {
+            case RESULT_SUCCESS:
+                successCount.incrementAndGet();
+                break;
+            case RESULT_FAILED:
+                failedCount.incrementAndGet();
+                break;
+            case RESULT_ERROR:
+                errorCount.incrementAndGet();
+                break;
+            default:
+                cancelledCount.incrementAndGet();
+                break;
+        }
+        if (activeCount.decrementAndGet() == 0) {
+            idleSubject.onNext(0);
+        }
+    }
+
+    /**
+     * 停止组内全部执行，之后加入的执行也会直接停止
+     */
+    public void cancelAll() {
+        isCancelled = true;
+        Disposable disposable = scopeDisposable;
+        if (disposable != null) {
+            disposable.dispose();
+        }
+        pollingDisposables.dispose();
+        for (RetryWhenDoOperationHelper helper : executionMap.values()) {
+            helper.stopNow();
+        }
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * 全部执行结束时完成  当前没有执行则立即完成
+     */
+    public Completable awaitAll() {
+        return Completable.create(emitter -> {
+            //先订阅再判断，避免错过
+            Disposable disposable = idleSubject.subscribe(integer -> emitter.onComplete());
+            emitter.setDisposable(disposable);
+            if (activeCount.get() == 0) {
+                emitter.onComplete();
+            }
+        });
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public int getSuccessCount() {
+        return successCount.get();
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    public int getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryGroup{" +
+                "active=" + activeCount.get() +
+                ", success=" + successCount.get() +
+                ", failed=" + failedCount.get() +
+                ", error=" + errorCount.get() +
+                ", cancelled=" + cancelledCount.get() +
+                ", isCancelled=" + isCancelled +
+                '}';
+    }
+}
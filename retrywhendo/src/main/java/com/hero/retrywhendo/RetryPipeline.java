@@ -0,0 +1,322 @@
+package com.hero.retrywhendo;
+
+import android.util.Log;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * <pre>
+ * 多阶段操作流水线
+ * 如：上传 -> 提交 -> 通知，每个阶段都是一个 Builder，拥有自己的操作接口和重试列表；
+ * 上一阶段成功的结果作为下一阶段的参数（由流水线设置）；
+ * 每次执行阶段时复制一份 Builder 再设置参数和回调，同一个 Builder 可以用于多个阶段或多个流水线；
+ * 某个阶段失败重试时，只重试该阶段，不会重新执行前面已经成功的阶段。
+ *
+ * 并行阶段：thenParallel 中的各个阶段使用同一个参数同时执行，
+ * 全部成功后以 List（顺序与传入顺序一致，只有一个分支时也是 List）作为下一阶段的参数。
+ *
+ * 检查点：流水线最终失败后，已经成功的阶段（包括并行阶段中成功的分支）会被记录，
+ * 调用 resume() 从失败的阶段继续执行。
+ * </pre>
+ */
+public class RetryPipeline {
+
+    private final String TAG = "RetryPipeline";
+
+    /**
+     * 还没有结果的标记
+     */
+    private static final Object NO_RESULT = new Object();
+
+    /**
+     * 所有阶段，每一项是一组并行的阶段，串行阶段即只有一个元素
+     */
+    private final List<List<Builder>> stageList = new ArrayList<>();
+
+    /**
+     * 每一项是否为 thenParallel 添加的并行阶段
+     */
+    private final List<Boolean> parallelList = new ArrayList<>();
+
+    /**
+     * 流水线最终的回调  成功的数据为最后一个阶段的结果
+     */
+    private FinalCallBack finalCallBack;
+
+    private boolean isDebug;
+
+    /**
+     * 正在执行的阶段
+     */
+    private final List<RetryWhenDoOperationHelper> runningHelperList = new CopyOnWriteArrayList<>();
+
+    /**
+     * 每次 start/resume/stopNow 都会递增，旧的回调据此丢弃
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * 检查点：下一个要执行的阶段
+     */
+    private volatile int checkpointStageIndex;
+
+    /**
+     * 检查点：下一个要执行的阶段的参数
+     */
+    private volatile Object checkpointInput;
+
+    /**
+     * 检查点：当前并行阶段中已经成功的分支结果
+     */
+    private volatile Object[] checkpointResults;
+
+    private RetryPipeline() {
+    }
+
+    public static RetryPipeline create() {
+        return new RetryPipeline();
+    }
+
+    public RetryPipeline setIsDebug(boolean isDebug) {
+        this.isDebug = isDebug;
+        return this;
+    }
+
+    /**
+     * 串行的阶段
+     *
+     * @param stage 该阶段的配置，参数与最终回调由流水线设置
+     * @return
+     */
+    public RetryPipeline then(Builder stage) {
+        if (stage != null) {
+            stageList.add(Collections.singletonList(stage));
+            parallelList.add(false);
+        }
+        return this;
+    }
+
+    /**
+     * 并行的阶段，全部成功后再执行下一阶段
+     *
+     * @param stages 各个并行阶段的配置，参数与最终回调由流水线设置
+     * @return
+     */
+    public RetryPipeline thenParallel(Builder... stages) {
+        if (stages != null && stages.length > 0) {
+            stageList.add(Collections.unmodifiableList(new ArrayList<>(Arrays.asList(stages))));
+            parallelList.add(true);
+        }
+        return this;
+    }
+
+    public RetryPipeline setFinalCallBack(FinalCallBack finalCallBack) {
+        this.finalCallBack = finalCallBack;
+        return this;
+    }
+
+    public int getCheckpointStageIndex() {
+        return checkpointStageIndex;
+    }
+
+    public Object getCheckpointInput() {
+        return checkpointInput;
+    }
+
+    /**
+     * 从第一个阶段开始执行
+     *
+     * @param input 第一个阶段的参数
+     * @return
+     */
+    public Disposable start(Object input) {
+        stopRunning();
+        checkpointStageIndex = 0;
+        checkpointInput = input;
+        checkpointResults = null;
+        return run();
+    }
+
+    /**
+     * 从检查点（失败的阶段）继续执行
+     *
+     * @return
+     */
+    public Disposable resume() {
+        stopRunning();
+        return run();
+    }
+
+    /**
+     * 停止执行，停止回调，检查点保留
+     */
+    public void stopNow() {
+        stopRunning();
+    }
+
+    private Disposable run() {
+        int runGeneration = generation.get();
+        runStage(runGeneration, checkpointStageIndex, checkpointInput);
+        return Disposable.fromAction(() -> {
+            if (generation.get() == runGeneration) {
+                stopRunning();
+            }
+        });
+    }
+
+    private void stopRunning() {
+        generation.incrementAndGet();
+        for (RetryWhenDoOperationHelper helper : runningHelperList) {
+            helper.stopNow();
+        }
+        runningHelperList.clear();
+    }
+
+    private void runStage(int runGeneration, int stageIndex, Object input) {
+        if (generation.get() != runGeneration) {
+            return;
+        }
+        checkpointStageIndex = stageIndex;
+        checkpointInput = input;
+        if (stageIndex >= stageList.size()) {
+            if (isDebug) {
+                Log.i(TAG, "流水线执行完毕 线程：" + Thread.currentThread().getName());
+            }
+            if (finalCallBack != null) {
+                finalCallBack.onSuccess(input);
+            }
+            return;
+        }
+
+        List<Builder> stages = stageList.get(stageIndex);
+        Object[] results = checkpointResults;
+        if (results == null || results.length != stages.size()) {
+            results = new Object[stages.size()];
+            Arrays.fill(results, NO_RESULT);
+            checkpointResults = results;
+        }
+        if (isDebug) {
+            Log.i(TAG, String.format("执行第%d阶段，并行数：%d，线程：%s", stageIndex, stages.size(), Thread.currentThread().getName()));
+        }
+
+        StageGroup stageGroup = new StageGroup(runGeneration, stageIndex, results);
+        List<Integer> pendingList = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == NO_RESULT) {
+                pendingList.add(i);
+            }
+        }
+        stageGroup.remaining.set(pendingList.size());
+        if (pendingList.isEmpty()) {
+            stageGroup.onSettled();
+            return;
+        }
+        for (int i : pendingList) {
+            //复制一份，不修改调用方的 Builder
+            RetryWhenDoOperationHelper helper = stages.get(i).copy()
+                    .setParam(input)
+                    .setFinalCallBack(stageGroup.newBranchCallBack(i))
+                    .build();
+            runningHelperList.add(helper);
+            helper.doRetryWhenOperation();
+        }
+    }
+
+    /**
+     * 一组并行阶段的汇合
+     */
+    private class StageGroup {
+        private final int runGeneration;
+        private final int stageIndex;
+        private final Object[] results;
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        /**
+         * 第一个失败的结果，整组结束后回调
+         */
+        private volatile Object failedBean;
+        private volatile Throwable error;
+        private final AtomicBoolean isFailed = new AtomicBoolean();
+
+        StageGroup(int runGeneration, int stageIndex, Object[] results) {
+            this.runGeneration = runGeneration;
+            this.stageIndex = stageIndex;
+            this.results = results;
+        }
+
+        FinalCallBack newBranchCallBack(int branchIndex) {
+            return new FinalCallBack() {
+                @Override
+                public void onFailed(Object failedBean) {
+                    if (isFailed.compareAndSet(false, true)) {
+                        StageGroup.this.failedBean = failedBean;
+                    }
+                    onBranchDone();
+                }
+
+                @Override
+                public void onSuccess(Object successBean) {
+                    //成功的分支记入检查点，resume 时不再执行
+                    results[branchIndex] = successBean;
+                    onBranchDone();
+                }
+
+                @Override
+                public void onError(@NotNull Throwable e) {
+                    if (isFailed.compareAndSet(false, true)) {
+                        error = e;
+                    }
+                    onBranchDone();
+                }
+            };
+        }
+
+        private void onBranchDone() {
+            if (remaining.decrementAndGet() == 0) {
+                onSettled();
+            }
+        }
+
+        /**
+         * 整组执行完毕（其他分支不会因为某个分支失败而中断，以便记入检查点）
+         */
+        void onSettled() {
+            if (generation.get() != runGeneration) {
+                return;
+            }
+            runningHelperList.clear();
+            if (isFailed.get()) {
+                if (isDebug) {
+                    Log.i(TAG, String.format("第%d阶段失败，已记录检查点，线程：%s", stageIndex, Thread.currentThread().getName()));
+                }
+                if (finalCallBack == null) {
+                    return;
+                }
+                if (error != null) {
+                    finalCallBack.onError(error);
+                } else {
+                    finalCallBack.onFailed(failedBean);
+                }
+                return;
+            }
+
+            checkpointResults = null;
+            Object output = parallelList.get(stageIndex)
+                    ? Collections.unmodifiableList(Arrays.asList(results.clone()))
+                    : results[0];
+            runStage(runGeneration, stageIndex + 1, output);
+        }
+    }
+}
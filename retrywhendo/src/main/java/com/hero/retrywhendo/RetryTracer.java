@@ -0,0 +1,223 @@
+package com.hero.retrywhendo;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <pre>
+ * 执行过程的追踪
+ * 记录每次执行中：延迟执行、每次操作、每次重试等待、最终回调分发 的耗时片段，以及所在线程和执行id；
+ * 片段为不可变对象，写入固定大小的环形缓冲区（AtomicReferenceArray，无锁，写满后覆盖最旧的），可以导出为 Chrome Trace Event JSON，
+ * 在 chrome://tracing 或 https://ui.perfetto.dev 中查看。
+ *
+ * 按执行采样，未被采样的执行不记录任何片段，线上可以用较低的采样率常开。
+ * </pre>
+ */
+public class RetryTracer {
+
+    public static final String SPAN_INITIAL_DELAY = "initialDelay";
+    public static final String SPAN_ATTEMPT = "attempt";
+    public static final String SPAN_BACKOFF = "backoff";
+    public static final String SPAN_CALLBACK = "callback";
+
+    /**
+     * 未被采样的执行id
+     */
+    static final long NOT_SAMPLED = -1;
+
+    private final int mask;
+
+    /**
+     * 写入的总序号
+     */
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * 每个槽位的片段，为空表示还没有写入
+     */
+    private final AtomicReferenceArray<Span> spans;
+
+    private final AtomicLong executionIdGenerator = new AtomicLong();
+
+    /**
+     * 采样率 0~1
+     */
+    private volatile double sampleRate = 1;
+
+    /**
+     * 导出时间戳的起点
+     */
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * @param capacity 缓冲区能保存的片段数，会向上取整为2的幂
+     */
+    public RetryTracer(int capacity) {
+        int size = capacity <= 16 ? 16 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        spans = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * 采样率  0 不记录，1 全部记录，默认 1
+     */
+    public RetryTracer setSampleRate(double sampleRate) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        return this;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 新的执行，按采样率决定是否记录
+     *
+     * @return 执行id，未被采样返回 NOT_SAMPLED
+     */
+    long newExecutionId() {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return NOT_SAMPLED;
+        }
+        return executionIdGenerator.incrementAndGet();
+    }
+
+    /**
+     * 记录一个片段，结束时间为当前时间，结束线程为当前线程
+     *
+     * @param startThread 片段开始时所在的线程
+     */
+    void record(long executionId, String name, int attempt, long start, Thread startThread) {
+        if (executionId == NOT_SAMPLED) {
+            return;
+        }
+        long end = System.nanoTime();
+        long sequence = cursor.getAndIncrement();
+        //一次写入不可变的片段，导出时要么读到完整的片段，要么读到其他序号的片段
+        spans.set((int) (sequence & mask), new Span(sequence, name, executionId, attempt, start, end - start,
+                startThread.getId(), startThread.getName(), Thread.currentThread().getName()));
+    }
+
+    /**
+     * 清空已记录的片段
+     */
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            spans.set(i, null);
+        }
+    }
+
+    /**
+     * 导出为 Chrome Trace Event JSON
+     *
+     * @param file 导出的文件
+     * @return 是否成功
+     */
+    public boolean exportChromeTrace(File file) {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+            writeChromeTrace(writer);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 按 Chrome Trace Event 格式写出，时间单位为微秒
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginObject();
+        jsonWriter.name("displayTimeUnit").value("ms");
+        jsonWriter.name("traceEvents").beginArray();
+
+        Map<Long, String> threadNameMap = new HashMap<>();
+        long end = cursor.get();
+        long begin = Math.max(0, end - (mask + 1));
+        for (long sequence = begin; sequence < end; sequence++) {
+            Span span = spans.get((int) (sequence & mask));
+            //为空或者已被覆盖则丢弃
+            if (span == null || span.sequence != sequence) {
+                continue;
+            }
+            threadNameMap.put(span.threadId, span.threadName);
+
+            jsonWriter.beginObject();
+            jsonWriter.name("name").value(span.name);
+            jsonWriter.name("cat").value("retry");
+            jsonWriter.name("ph").value("X");
+            jsonWriter.name("ts").value((span.startNanos - originNanos) / 1000.0);
+            jsonWriter.name("dur").value(span.durationNanos / 1000.0);
+            jsonWriter.name("pid").value(1);
+            jsonWriter.name("tid").value(span.threadId);
+            jsonWriter.name("args").beginObject();
+            jsonWriter.name("executionId").value(span.executionId);
+            jsonWriter.name("attempt").value(span.attempt);
+            jsonWriter.name("endThread").value(span.endThreadName);
+            jsonWriter.endObject();
+            jsonWriter.endObject();
+        }
+
+        for (Map.Entry<Long, String> entry : threadNameMap.entrySet()) {
+            jsonWriter.beginObject();
+            jsonWriter.name("name").value("thread_name");
+            jsonWriter.name("ph").value("M");
+            jsonWriter.name("pid").value(1);
+            jsonWriter.name("tid").value(entry.getKey());
+            jsonWriter.name("args").beginObject();
+            jsonWriter.name("name").value(entry.getValue());
+            jsonWriter.endObject();
+            jsonWriter.endObject();
+        }
+
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        jsonWriter.flush();
+    }
+
+    /**
+     * 一个片段  不可变
+     */
+    private static class Span {
+        private final long sequence;
+        private final String name;
+        private final long executionId;
+        private final int attempt;
+        private final long startNanos;
+        private final long durationNanos;
+        private final long threadId;
+        private final String threadName;
+        private final String endThreadName;
+
+        Span(long sequence, String name, long executionId, int attempt, long startNanos, long durationNanos,
+             long threadId, String threadName, String endThreadName) {
+            this.sequence = sequence;
+            this.name = name;
+            this.executionId = executionId;
+            this.attempt = attempt;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.endThreadName = endThreadName;
+        }
+    }
+}
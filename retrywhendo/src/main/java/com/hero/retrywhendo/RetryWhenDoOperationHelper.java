@@ -1,8 +1,12 @@
 package com.hero.retrywhendo;
 
 import android.os.Looper;
+
+import androidx.lifecycle.LifecycleOwner;
 import android.util.Log;
 
+import com.hero.retrywhendo.interfaces.FallbackCallBack;
+import com.hero.retrywhendo.interfaces.FallbackSupplier;
 import com.hero.retrywhendo.interfaces.FinalCallBack;
 import com.hero.retrywhendo.interfaces.OperationCallBack;
 import com.hero.retrywhendo.interfaces.OnDoOperationListener;
@@ -10,6 +14,9 @@ import com.hero.retrywhendo.interfaces.OnDoOperationListener;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import autodispose2.AutoDispose;
 import autodispose2.androidx.lifecycle.AndroidLifecycleScopeProvider;
@@ -38,14 +45,78 @@ public class RetryWhenDoOperationHelper<T, F, S> {
     /**
      * 重试的次数
      */
-    private int retryCount;
+    private final AtomicInteger retryCount = new AtomicInteger();
     private Builder<T> builder = new Builder<>();
-    private Disposable disposable;
+    private volatile Disposable disposable;
 
     /**
      * 是否已经停止
      */
-    private boolean isStopNow;
+    private volatile boolean isStopNow;
+
+    /**
+     * 停止与重新开始、轮询启动互斥  只保护状态切换，不会在持有时执行用户的回调
+     */
+    private final Object callBackLock = new Object();
+
+    private static final int CALLBACK_STOPPED = -1;
+
+    /**
+     * 回调的状态  不小于0时为已经开始、还没有结束的回调数，CALLBACK_STOPPED 为已经停止
+     * 回调通过 CAS 增加计数才算开始；停止时置为 CALLBACK_STOPPED，之后的回调都无法开始
+     */
+    private final AtomicInteger callBackState = new AtomicInteger();
+
+    private static final int PROVISIONAL_NONE = 0;
+    private static final int PROVISIONAL_POSTED = 1;
+    private static final int PROVISIONAL_DELIVERED = 2;
+    private static final int PROVISIONAL_SKIPPED = 3;
+
+    /**
+     * 兜底的临时结果的状态
+     * 已经 post 但还没有开始回调时执行就结束了，则跳过临时结果，不会在最终结果之后用旧数据覆盖
+     */
+    private final AtomicInteger provisionalState = new AtomicInteger(PROVISIONAL_NONE);
+
+    /**
+     * 本次执行的追踪id，未开启追踪或未被采样为 RetryTracer.NOT_SAMPLED
+     */
+    private volatile long executionId = RetryTracer.NOT_SAMPLED;
+
+    /**
+     * 是否已经结束（最终的成功、失败、异常只回调一次）
+     */
+    private final AtomicBoolean isFinished = new AtomicBoolean();
+
+    /**
+     * 本次执行的代数，旧执行中迟到的回调据此丢弃
+     */
+    private volatile int runGeneration;
+
+    /**
+     * 操作id，每次操作递增
+     */
+    private final AtomicInteger attemptIdGenerator = new AtomicInteger();
+
+    /**
+     * 第一次失败的时间，用于自适应重试间隔统计恢复时间，0 为还没有失败
+     */
+    private volatile long firstFailureNanos;
+
+    /**
+     * 轮询的状态，未轮询时为 null
+     */
+    private volatile PollingState pollingState;
+
+    /**
+     * 本次执行使用的操作接口，批量操作每次执行使用单独的实例保存进度
+     */
+    private volatile OnDoOperationListener operationListener;
+
+    /**
+     * 在 RetryGroup 中的id
+     */
+    private volatile long groupExecutionId;
 
     public static Builder getInstance() {
         return new Builder();
@@ -61,11 +132,75 @@ public class RetryWhenDoOperationHelper<T, F, S> {
     }
 
     public Disposable doRetryWhenOperation() {
-        retryCount = 0;
-        isStopNow = false;
+        return startRun(null);
+    }
+
+    /**
+     * 开始一次执行
+     *
+     * @param tickState 轮询中的一次执行时为轮询的状态，轮询已经停止则不执行
+     */
+    private Disposable startRun(PollingState tickState) {
+        //上一次执行还没有结束就重新开始：停止上一次，并按取消从组中移除，否则组永远等不到它结束
+        Disposable previousDisposable = disposable;
+        if (previousDisposable != null) {
+            previousDisposable.dispose();
+        }
+        RetryGroup retryGroup = builder.getRetryGroup();
+        long previousGroupExecutionId = groupExecutionId;
+        if (retryGroup != null && previousGroupExecutionId > 0) {
+            groupExecutionId = 0;
+            retryGroup.onFinished(previousGroupExecutionId, RetryGroup.RESULT_CANCELLED);
+        }
+        //与 stopNow()、停止轮询互斥：已经停止的轮询不会在这里被重新启动
+        synchronized (callBackLock) {
+            if (tickState != null && tickState.isDisposed()) {
+                return null;
+            }
+            isStopNow = false;
+            callBackState.set(0);
+        }
+        retryCount.set(0);
+        firstFailureNanos = 0;
+        provisionalState.set(PROVISIONAL_NONE);
+        runGeneration++;
+        attemptIdGenerator.set(0);
+        isFinished.set(false);
+        OnDoOperationListener onDoOperationListener = builder.getOnDoOperationListener();
+        if (onDoOperationListener instanceof BatchOperationAdapter) {
+            //批量操作的进度保存在本次执行中，不与其他执行共用
+            onDoOperationListener = ((BatchOperationAdapter) onDoOperationListener).newRun();
+        }
+        operationListener = onDoOperationListener;
+        if (retryGroup != null) {
+            groupExecutionId = retryGroup.add(this);
+            if (groupExecutionId < 0) {
+                //组已经取消
+                synchronized (callBackLock) {
+                    markStopped();
+                }
+                return null;
+            }
+        }
+        RetryTracer tracer = builder.getTracer();
+        executionId = tracer != null ? tracer.newExecutionId() : RetryTracer.NOT_SAMPLED;
+        //只有被采样的执行才记录时间和线程
+        long delayStart = isTracing() ? System.nanoTime() : 0;
+        Thread delayThread = isTracing() ? Thread.currentThread() : null;
 
         Observable<OnNextBean> objectObservable = Observable.create((ObservableEmitter<OnNextBean> emitter) -> {
                     //在最后一次重试时 emitter.isDisposed() = true，无法使用 onNext 和 onError传递
+            PriorityRetryScheduler priorityScheduler = builder.getPriorityScheduler();
+            if (priorityScheduler != null) {
+                //按优先级、公平排队后执行
+                boolean isFirstAttempt = retryCount.get() == 0;
+                priorityScheduler.submit(builder.getPriority(), getOperationKey(), isFirstAttempt, () -> {
+                    if (!isStopNow) {
+                        doOperation(emitter);
+                    }
+                });
+                return;
+            }
             //这里默认在io线程处理
             Scheduler subscribeOnScheduler = builder.getSubscribeOnScheduler();
             if (subscribeOnScheduler == null) {
@@ -76,22 +211,7 @@ public class RetryWhenDoOperationHelper<T, F, S> {
             Observable.just(0)
                             .observeOn(subscribeOnScheduler)
                             .subscribe(integer -> {
-                                try {
-                                    doOperation(emitter);
-                                } catch (Exception exception) {
-                                    exception.printStackTrace();
-                                    if (builder.isDebug()) {
-                                        Log.e(TAG, "doRetryWhenOperation() doOperation()", exception);
-                                    }
-                                    if (!isDisposed(emitter)) {
-                                        emitter.onError(exception);
-                                        //结束
-                                        emitter.onComplete();
-                                    } else {
-                                        //emitter.isDisposed() = false 证明已经是最后一次
-                                        onFinalError(exception);
-                                    }
-                                }
+                                doOperation(emitter);
                             });
                 }).retryWhen(errorObservable -> errorObservable
                         .zipWith(builder.getDelayTimeList(), (e, time) -> time)
@@ -100,7 +220,33 @@ public class RetryWhenDoOperationHelper<T, F, S> {
                             if (builder.isDebug()) {
                                 Log.i(TAG, String.format("%d秒后重试，线程：%s", delay, Thread.currentThread().getName()));
                             }
-                            return Observable.timer(delay, builder.getUnit());
+                            long backoffStart = isTracing() ? System.nanoTime() : 0;
+                            Thread backoffThread = isTracing() ? Thread.currentThread() : null;
+                            int attempt = retryCount.get();
+                            Observable<Long> retryTimer;
+                            AdaptiveBackoff adaptiveBackoff = builder.getAdaptiveBackoff();
+                            if (adaptiveBackoff != null) {
+                                //根据学习到的恢复时间决定间隔，样本不足时使用重试列表中的间隔
+                                long elapsedMillis = (System.nanoTime() - firstFailureNanos) / 1_000_000;
+                                long delayMillis = adaptiveBackoff.nextDelayMillis(getOperationKey(), elapsedMillis, builder.getUnit().toMillis(delay));
+                                if (builder.isDebug()) {
+                                    Log.i(TAG, String.format("自适应间隔%d毫秒，线程：%s", delayMillis, Thread.currentThread().getName()));
+                                }
+                                retryTimer = Observable.timer(delayMillis, TimeUnit.MILLISECONDS);
+                            } else {
+                                retryTimer = Observable.timer(delay, builder.getUnit());
+                            }
+                            RetryGate retryGate = builder.getRetryGate();
+                            if (retryGate != null) {
+                                //闸门关闭时挂起，打开后再执行重试
+                                retryTimer = retryTimer.concatMap(aLong -> {
+                                    if (builder.isDebug() && !retryGate.isOpen()) {
+                                        Log.i(TAG, String.format("重试闸门关闭，等待打开，线程：%s", Thread.currentThread().getName()));
+                                    }
+                                    return retryGate.awaitOpen();
+                                });
+                            }
+                            return retryTimer.doOnNext(aLong -> trace(RetryTracer.SPAN_BACKOFF, attempt, backoffStart, backoffThread));
                         }));
 //                .subscribeOn(builder.getSubscribeOnScheduler())
 
@@ -111,37 +257,244 @@ public class RetryWhenDoOperationHelper<T, F, S> {
 
         //子线程中处理好的数据在主线程中返回
         //延迟处理
-        Observable<Long> timer = Observable.timer(builder.getDelay(), TimeUnit.SECONDS);
+        //轮询时延迟只在第一次之前生效
+        long delay = pollingState != null ? 0 : builder.getDelay();
+        //不需要延迟时直接开始，不必经过 computation 线程的定时器
+        Observable<Long> timer = delay > 0 ? Observable.timer(delay, TimeUnit.SECONDS) : Observable.just(0L);
         Scheduler subscribeOnScheduler = builder.getSubscribeOnScheduler();
         if (subscribeOnScheduler != null) {
             timer = timer.subscribeOn(subscribeOnScheduler);
         }
         Observable<OnNextBean> booleanObservable = timer.concatMap((Function<Long, ObservableSource<OnNextBean>>) aLong -> {
-            Log.i(TAG, String.format("延迟%d秒执行，线程：%s", builder.getDelay(), Thread.currentThread().getName()));
+            Log.i(TAG, String.format("延迟%d秒执行，线程：%s", delay, Thread.currentThread().getName()));
+            trace(RetryTracer.SPAN_INITIAL_DELAY, 0, delayStart, delayThread);
             return objectObservable;
         });
 
+        //被取消（如 AutoDispose 在生命周期结束时）也算本次执行结束，通知组和轮询
+        Observable<OnNextBean> executionObservable = booleanObservable.doOnDispose(() -> {
+            if (isFinished.compareAndSet(false, true)) {
+                onExecutionFinished(RetryGroup.RESULT_CANCELLED, null);
+            }
+        });
+
         Observer<OnNextBean> observer = getObserver();
+        if (retryGroup != null) {
+            //由 RetryGroup 统一管理生命周期，不需要每个执行单独使用 AutoDispose
+            executionObservable.subscribe(observer);
+            return disposeIfStopped();
+        }
         //使用AutoDispose 防止内存泄漏
         if (builder.getOwner() != null) {
             if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
-                booleanObservable.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(builder.getOwner())))
+                executionObservable.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(builder.getOwner())))
                         .subscribe(observer);
-                return disposable;
+                return disposeIfStopped();
             }
             //使用rxjava切换到主线程
             Observable.just(0)
                     .observeOn(AndroidSchedulers.mainThread())
                     .subscribe(integer -> {
-                        booleanObservable.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(builder.getOwner())))
+                        executionObservable.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(builder.getOwner())))
                                 .subscribe(observer);
+                        disposeIfStopped();
                     });
             return disposable;
         }
-        booleanObservable.subscribe(observer);
+        executionObservable.subscribe(observer);
+        return disposeIfStopped();
+    }
+
+    /**
+     * 订阅期间被停止（stopNow、停止轮询）时，停止时还没有 disposable，这里补上
+     */
+    private Disposable disposeIfStopped() {
+        Disposable disposable = this.disposable;
+        if (isStopNow && disposable != null) {
+            disposable.dispose();
+        }
         return disposable;
     }
 
+    /**
+     * 轮询，相当于 doPollingOperation(period, unit, 1)
+     */
+    public Disposable doPollingOperation(long period, TimeUnit unit) {
+        return doPollingOperation(period, unit, 1);
+    }
+
+    /**
+     * <pre>
+     * 轮询  每隔 period 执行一次操作，每次都按重试列表重试，结果通过 FinalCallBack 回调
+     * 1、从开始的时间按固定频率计算（单调时钟），不会因为操作的耗时而漂移；
+     * 2、上一次还没有结束（包括重试）时，到期的这一次跳过，不会堆积；
+     * 3、结果没有变化时（equals），间隔逐次翻倍，最多为 period * maxStretch，变化或失败后恢复；
+     * 4、通过返回的 Disposable 或者 stopNow() 停止；设置了 setRetryGroup 时随组停止，否则设置了 setOwner 时随生命周期停止。
+     * 首次执行前按 setDelay 延迟；计时所在的线程通过 setPollingScheduler 设置。
+     * </pre>
+     *
+     * @param maxStretch 结果没有变化时间隔最多拉长的倍数，1为不拉长
+     * @return
+     */
+    public Disposable doPollingOperation(long period, TimeUnit unit, int maxStretch) {
+        PollingState oldPollingState = pollingState;
+        if (oldPollingState != null) {
+            oldPollingState.dispose();
+        }
+        PollingState newPollingState = new PollingState(Math.max(1, maxStretch));
+        pollingState = newPollingState;
+        long initialDelay = unit.convert(builder.getDelay(), TimeUnit.SECONDS);
+        //按开始时间固定频率执行，默认在 computation 线程计时
+        //interval 被取消（如生命周期结束）时停止轮询，否则它会一直持有 helper、Builder 和 LifecycleOwner
+        Observable<Long> interval = Observable.interval(initialDelay, period, unit, builder.getPollingScheduler())
+                .doOnDispose(newPollingState::dispose);
+
+        RetryGroup retryGroup = builder.getRetryGroup();
+        if (retryGroup != null) {
+            //随组停止
+            if (retryGroup.addPolling(newPollingState)) {
+                newPollingState.setIntervalDisposable(interval.subscribe(newPollingState::onTick));
+            }
+            return newPollingState;
+        }
+        LifecycleOwner owner = builder.getOwner();
+        if (owner != null) {
+            //随生命周期停止
+            if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+                newPollingState.setIntervalDisposable(interval.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(owner)))
+                        .subscribe(newPollingState::onTick));
+                return newPollingState;
+            }
+            //使用rxjava切换到主线程
+            Observable.just(0)
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(integer -> {
+                        if (!newPollingState.isDisposed()) {
+                            newPollingState.setIntervalDisposable(interval.to(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(owner)))
+                                    .subscribe(newPollingState::onTick));
+                        }
+                    });
+            return newPollingState;
+        }
+        newPollingState.setIntervalDisposable(interval.subscribe(newPollingState::onTick));
+        return newPollingState;
+    }
+
+    /**
+     * 轮询的状态
+     */
+    private class PollingState implements Disposable {
+
+        private final int maxStretch;
+
+        /**
+         * 本次是否还在执行（包括重试）
+         */
+        private final AtomicBoolean isTickRunning = new AtomicBoolean();
+
+        /**
+         * 下一次执行的序号，结果没有变化时跳过中间的
+         */
+        private volatile long nextTick;
+
+        /**
+         * 当前间隔的倍数
+         */
+        private volatile int stretch = 1;
+
+        private volatile long runningTick;
+
+        private volatile Object lastSuccessBean;
+
+        private volatile Disposable intervalDisposable;
+
+        private final AtomicBoolean isDisposed = new AtomicBoolean();
+
+        PollingState(int maxStretch) {
+            this.maxStretch = maxStretch;
+        }
+
+        /**
+         * 设置时已经停止则立即取消
+         */
+        void setIntervalDisposable(Disposable disposable) {
+            intervalDisposable = disposable;
+            if (isDisposed.get()) {
+                disposable.dispose();
+            }
+        }
+
+        void onTick(long tick) {
+            if (isDisposed.get() || tick < nextTick) {
+                return;
+            }
+            if (!isTickRunning.compareAndSet(false, true)) {
+                //上一次还没有结束，跳过这一次
+                if (builder.isDebug()) {
+                    Log.i(TAG, String.format("轮询第%d次跳过，上一次还没有结束，线程：%s", tick, Thread.currentThread().getName()));
+                }
+                return;
+            }
+            runningTick = tick;
+            //已经停止则不会执行，不会重置停止的标记
+            startRun(this);
+            if (isStopNow && pollingState == this) {
+                //组已经取消等原因没有执行
+                dispose();
+            }
+        }
+
+        void onTickFinished(int result, Object bean) {
+            if (result == RetryGroup.RESULT_SUCCESS && maxStretch > 1) {
+                Object lastBean = lastSuccessBean;
+                if (lastBean != null && lastBean.equals(bean)) {
+                    stretch = Math.min(stretch * 2, maxStretch);
+                } else {
+                    stretch = 1;
+                }
+                lastSuccessBean = bean;
+            } else {
+                stretch = 1;
+            }
+            nextTick = runningTick + stretch;
+            isTickRunning.set(false);
+        }
+
+        @Override
+        public void dispose() {
+            if (!isDisposed.compareAndSet(false, true)) {
+                return;
+            }
+            Disposable disposable = intervalDisposable;
+            if (disposable != null) {
+                disposable.dispose();
+            }
+            if (pollingState == this) {
+                pollingState = null;
+                synchronized (callBackLock) {
+                    markStopped();
+                }
+                Disposable executionDisposable = RetryWhenDoOperationHelper.this.disposable;
+                if (executionDisposable != null) {
+                    executionDisposable.dispose();
+                }
+                RetryGroup retryGroup = builder.getRetryGroup();
+                if (retryGroup != null) {
+                    retryGroup.onFinished(groupExecutionId, RetryGroup.RESULT_CANCELLED);
+                }
+            }
+            RetryGroup retryGroup = builder.getRetryGroup();
+            if (retryGroup != null) {
+                retryGroup.removePolling(this);
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return isDisposed.get();
+        }
+    }
+
     private Observer<OnNextBean> getObserver() {
         Observer<OnNextBean> observer = new Observer<OnNextBean>() {
             @Override
@@ -187,139 +540,357 @@ public class RetryWhenDoOperationHelper<T, F, S> {
 
         //进行操作（同步、异步都使用回调结果处理）
         //传入操作后回调处理
-        OnDoOperationListener onDoOperationListener = builder.getOnDoOperationListener();
-        if (onDoOperationListener == null) {
+        OnDoOperationListener onDoOperationListener = operationListener;
+        if (onDoOperationListener == null || isFinished.get()) {
             return;
         }
 
-        onDoOperationListener.onDoOperation(builder.getT(), new OperationCallBack<F, S>() {
-            @Override
-            public void onFailed(F failedBean) {
-                if (builder.isDebug()) {
-                    Log.i(TAG, "onFailed failedBean:"
-                            + JsonUtils.javabeanToJson(failedBean) + " Thread:" + Thread.currentThread());
-                }
-                onDoOperationFaile(failedBean, emitter);
-            }
-
-            /**
-             * 回调成功，则直接结束重试，并回调结果
-             * @param successBean
-             */
-            @Override
-            public void onSuccess(S successBean) {
-                if (builder.isDebug()) {
-                    Log.i(TAG, "onSuccess successBean:"
-                            + JsonUtils.javabeanToJson(successBean) + " Thread:" + Thread.currentThread().getName());
-                }
-
-                onFinalSuccess(successBean);
-                emitter.onComplete();
+        //每次操作使用单独的回调，携带操作id
+        AttemptCallBack attemptCallBack = new AttemptCallBack(runGeneration, attemptIdGenerator.incrementAndGet(), emitter);
+        long attemptTimeout = builder.getAttemptTimeout();
+        if (attemptTimeout > 0) {
+            attemptCallBack.timeoutDisposable = Schedulers.computation()
+                    .scheduleDirect(attemptCallBack::onTimeout, attemptTimeout, builder.getAttemptTimeoutUnit());
+        }
 
-                /*if (!isDisposed(emitter)) {
-                    OnNextBean onNextBean = new OnNextBean();
-                    onNextBean.setS(successBean);
-                    emitter.onNext(onNextBean);
-                    //结束
-                    emitter.onComplete();
-                }*/
+        try {
+            onDoOperationListener.onDoOperation(builder.getT(), attemptCallBack);
+        } catch (RuntimeException exception) {
+            exception.printStackTrace();
+            if (builder.isDebug()) {
+                Log.e(TAG, "doRetryWhenOperation() doOperation()", exception);
             }
-        });
+            if (attemptCallBack.report(AttemptCallBack.STATE_REPORTED) == AttemptCallBack.STATE_IN_FLIGHT) {
+                trace(RetryTracer.SPAN_ATTEMPT, attemptCallBack.attemptId, attemptCallBack.attemptStart, attemptCallBack.attemptThread);
+                onAttemptFailed(null, exception, emitter);
+            }
+        }
     }
 
-    private void onDoOperationFaile(F failedBean, ObservableEmitter<OnNextBean> emitter) {
-        retryCount++;
+    /**
+     * 一次操作失败（回调失败、抛出异常或者超时）
+     *
+     * @param failedBean 回调失败的数据
+     * @param error      异常或者超时，回调失败时为 null
+     * @param emitter
+     */
+    private void onAttemptFailed(F failedBean, Throwable error, ObservableEmitter<OnNextBean> emitter) {
+        if (isFinished.get()) {
+            return;
+        }
+        int failedCount = retryCount.incrementAndGet();
+        if (failedCount == 1) {
+            firstFailureNanos = System.nanoTime();
+        }
+        onProvisionalFallback();
         boolean isDisposed = isDisposed(emitter);
-        if (retryCount > builder.getDelayTimeList().size()) {
+        if (failedCount > builder.getDelayTimeList().size()) {
             //重试执行完毕 emitter 已经关闭
             if (builder.isDebug()) {
                 Log.i(TAG, "重试执行完毕 emitter 已经关闭 线程：" + Thread.currentThread().getName());
             }
-            onFinalFailed(failedBean);
             //重试列表已经都重试完了，最终回调错误信息
-          /*  OnNextBean onNextBean = new OnNextBean();
-            onNextBean.setF(failedBean);
-            if (!isDisposed) {
-                emitter.onNext(onNextBean);
-                emitter.onComplete();
-            }*/
+            if (error != null) {
+                onFinalError(error);
+            } else {
+                onFinalFailed(failedBean);
+            }
             return;
         }
         if (!isDisposed) {
             if (builder.isDebug()) {
-                Log.i(TAG, "onDoOperationFaile 重试次数未使用完，报个错，使之能进行重试 线程：" + Thread.currentThread().getName());
+                Log.i(TAG, "onAttemptFailed 重试次数未使用完，报个错，使之能进行重试 线程：" + Thread.currentThread().getName());
             }
             //重试次数未使用完，报个错，使之能进行重试
-            emitter.onError(new RuntimeException("处理失败"));
+            emitter.onError(error != null ? error : new RuntimeException("处理失败"));
         }
     }
 
-    private void onFinalFailed(F failedBean) {
-        if (!isCanCallBack()) {
+    /**
+     * 任意一次操作成功，结束执行
+     * 包括已经超时被放弃、但仍在进行中的操作（迟到的成功），此时取消等待中的重试
+     */
+    private void onAttemptSuccess(S successBean, AttemptCallBack attemptCallBack, boolean isAbandoned) {
+        boolean isLate = isAbandoned || attemptCallBack.attemptId != attemptIdGenerator.get();
+        if (!onFinalSuccess(successBean)) {
             return;
         }
+        if (isLate) {
+            if (builder.isDebug()) {
+                Log.i(TAG, String.format("第%d次操作迟到的成功，取消等待中的重试，线程：%s", attemptCallBack.attemptId, Thread.currentThread().getName()));
+            }
+            Disposable disposable = this.disposable;
+            if (disposable != null) {
+                disposable.dispose();
+            }
+            return;
+        }
+        attemptCallBack.emitter.onComplete();
+    }
 
-        Scheduler observeOnScheduler = builder.getObserveOnScheduler();
-        if (observeOnScheduler != null) {
-            Observable.just(0)
-                    .observeOn(observeOnScheduler)
-                    .subscribe(integer -> {
-                        if (isCanCallBack()) {
-                            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-                            finalOperationCallBack.onFailed(failedBean);
-                        }
-                    });
+    private void onFinalFailed(F failedBean) {
+        if (!isFinished.compareAndSet(false, true)) {
             return;
         }
-        FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-        finalOperationCallBack.onFailed(failedBean);
+        skipPendingProvisional();
+        onExecutionFinished(RetryGroup.RESULT_FAILED, failedBean);
+        if (!isCanCallBack()) {
+            return;
+        }
+
+        postCallBack(() -> {
+            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
+            finalOperationCallBack.onFailed(failedBean);
+        });
     }
 
 
-    private void onFinalSuccess(S successBean) {
+    /**
+     * @return 是否由本次结束执行，已经结束过返回 false
+     */
+    private boolean onFinalSuccess(S successBean) {
+        if (!isFinished.compareAndSet(false, true)) {
+            return false;
+        }
+        skipPendingProvisional();
+        onExecutionFinished(RetryGroup.RESULT_SUCCESS, successBean);
+        AdaptiveBackoff adaptiveBackoff = builder.getAdaptiveBackoff();
+        long firstFailureNanos = this.firstFailureNanos;
+        if (adaptiveBackoff != null && firstFailureNanos != 0) {
+            //记录本次从第一次失败到成功的恢复时间
+            adaptiveBackoff.record(getOperationKey(), (System.nanoTime() - firstFailureNanos) / 1_000_000);
+        }
         if (!isCanCallBack()) {
+            return true;
+        }
+
+        postCallBack(() -> {
+            if (builder.isDebug()) {
+                Log.i(TAG, "最终结果 onSuccess successBean:"
+                        + JsonUtils.javabeanToJson(successBean) + " Thread:" + Thread.currentThread().getName());
+            }
+            onFreshSuccess(successBean);
+            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
+            finalOperationCallBack.onSuccess(successBean);
+        });
+        return true;
+    }
+
+    /**
+     * 第一次失败后，回调兜底的临时结果，后台继续重试
+     */
+    private void onProvisionalFallback() {
+        FallbackSupplier fallbackSupplier = builder.getFallbackSupplier();
+        FallbackCallBack fallbackCallBack = builder.getFallbackCallBack();
+        if (fallbackSupplier == null || fallbackCallBack == null || !isCanCallBack()) {
+            return;
+        }
+        if (!provisionalState.compareAndSet(PROVISIONAL_NONE, PROVISIONAL_POSTED)) {
             return;
         }
 
-        Scheduler observeOnScheduler = builder.getObserveOnScheduler();
-        if (observeOnScheduler != null) {
-            Observable.just(0)
-                    .observeOn(observeOnScheduler)
-                    .subscribe(integer -> {
-                        if (isCanCallBack()) {
-                            if (builder.isDebug()) {
-                                Log.i(TAG, "最终结果 onSuccess successBean:"
-                                        + JsonUtils.javabeanToJson(successBean) + " Thread:" + Thread.currentThread().getName());
-                            }
-                            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-                            finalOperationCallBack.onSuccess(successBean);
-                        }
-                    });
+        Object fallbackBean;
+        try {
+            fallbackBean = fallbackSupplier.getFallback(builder.getT());
+        } catch (Exception exception) {
+            if (builder.isDebug()) {
+                Log.e(TAG, "onProvisionalFallback() getFallback()", exception);
+            }
+            fallbackBean = null;
+        }
+        if (fallbackBean == null) {
+            //没有兜底数据，成功后也不需要替换
+            provisionalState.compareAndSet(PROVISIONAL_POSTED, PROVISIONAL_NONE);
             return;
         }
-        FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-        finalOperationCallBack.onSuccess(successBean);
+        if (builder.isDebug()) {
+            Log.i(TAG, "临时结果 fallbackBean:"
+                    + JsonUtils.javabeanToJson(fallbackBean) + " Thread:" + Thread.currentThread().getName());
+        }
+
+        Object provisionalBean = fallbackBean;
+        int generation = runGeneration;
+        postCallBack(() -> {
+            //多线程的回调线程中，临时结果可能晚于最终结果执行；执行已经结束则跳过
+            if (generation != runGeneration
+                    || !provisionalState.compareAndSet(PROVISIONAL_POSTED, PROVISIONAL_DELIVERED)) {
+                return;
+            }
+            fallbackCallBack.onProvisionalSuccess(provisionalBean);
+        });
+    }
+
+    /**
+     * 执行结束，在 post 最终结果之前调用  还没有开始回调的临时结果不再回调
+     */
+    private void skipPendingProvisional() {
+        provisionalState.compareAndSet(PROVISIONAL_POSTED, PROVISIONAL_SKIPPED);
+    }
+
+    /**
+     * 回调过临时结果，成功后用最新结果替换
+     */
+    private void onFreshSuccess(S successBean) {
+        FallbackCallBack fallbackCallBack = builder.getFallbackCallBack();
+        if (fallbackCallBack != null && provisionalState.get() == PROVISIONAL_DELIVERED) {
+            fallbackCallBack.onFreshSuccess(successBean);
+        }
     }
 
     private void onFinalError(Throwable e) {
+        if (!isFinished.compareAndSet(false, true)) {
+            return;
+        }
+        skipPendingProvisional();
+        onExecutionFinished(RetryGroup.RESULT_ERROR, e);
         if (!isCanCallBack()) {
             return;
         }
 
+        postCallBack(() -> {
+            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
+            finalOperationCallBack.onError(e);
+        });
+    }
+
+    /**
+     * 本次执行结束，通知 RetryGroup 和轮询
+     */
+    private void onExecutionFinished(int result, Object bean) {
+        RetryGroup retryGroup = builder.getRetryGroup();
+        if (retryGroup != null) {
+            retryGroup.onFinished(groupExecutionId, result);
+        }
+        PollingState pollingState = this.pollingState;
+        if (pollingState != null) {
+            pollingState.onTickFinished(result, bean);
+        }
+    }
+
+    /**
+     * 在回调线程中执行回调
+     *
+     * @param callBack
+     */
+    private void postCallBack(Runnable callBack) {
+        long postStart = isTracing() ? System.nanoTime() : 0;
+        Thread postThread = isTracing() ? Thread.currentThread() : null;
+        int attempt = retryCount.get();
+        CallBackDispatcher callBackDispatcher = builder.getCallBackDispatcher();
+        if (callBackDispatcher != null) {
+            //合并到下一个窗口统一回调
+            callBackDispatcher.dispatch(() -> runCallBack(callBack, attempt, postStart, postThread));
+            return;
+        }
         Scheduler observeOnScheduler = builder.getObserveOnScheduler();
         if (observeOnScheduler != null) {
             Observable.just(0)
                     .observeOn(observeOnScheduler)
-                    .subscribe(integer -> {
-                        if (isCanCallBack()) {
-                            FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-                            finalOperationCallBack.onError(e);
-                        }
-                    });
+                    .subscribe(integer -> runCallBack(callBack, attempt, postStart, postThread));
             return;
         }
-        FinalCallBack finalOperationCallBack = builder.getFinalCallBack();
-        finalOperationCallBack.onError(e);
+        runCallBack(callBack, attempt, postStart, postThread);
+    }
+
+    /**
+     * 执行回调  通过 CAS 开始回调，已经停止则不回调
+     * 不持有锁执行用户代码，stopNow() 不会被正在执行的回调阻塞
+     */
+    private void runCallBack(Runnable callBack, int attempt, long postStart, Thread postThread) {
+        if (builder.getFinalCallBack() == null || !tryStartCallBack()) {
+            return;
+        }
+        try {
+            callBack.run();
+        } finally {
+            finishCallBack();
+        }
+        trace(RetryTracer.SPAN_CALLBACK, attempt, postStart, postThread);
+    }
+
+    /**
+     * 开始回调，计数加一  这里成功之后才算回调已经开始
+     *
+     * @return 已经停止时返回 false
+     */
+    private boolean tryStartCallBack() {
+        while (true) {
+            int state = callBackState.get();
+            if (state == CALLBACK_STOPPED) {
+                return false;
+            }
+            if (callBackState.compareAndSet(state, state + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void finishCallBack() {
+        while (true) {
+            int state = callBackState.get();
+            //已经停止或重新开始，不再计数
+            if (state <= 0) {
+                return;
+            }
+            if (callBackState.compareAndSet(state, state - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 标记为已经停止，需要持有 callBackLock
+     *
+     * @return 停止时已经开始、还没有结束的回调数
+     */
+    private int markStopped() {
+        isStopNow = true;
+        return Math.max(callBackState.getAndSet(CALLBACK_STOPPED), 0);
+    }
+
+    /**
+     * 操作的 key，未设置时见 getDefaultOperationKey()
+     */
+    private String getOperationKey() {
+        String operationKey = builder.getOperationKey();
+        if (operationKey != null) {
+            return operationKey;
+        }
+        return getDefaultOperationKey(builder.getOnDoOperationListener());
+    }
+
+    /**
+     * 未设置 key 时使用的 key  一般为操作接口的类名
+     * 批量操作、故障转移只是包装，按被包装的操作接口区分，否则所有批量操作（或所有故障转移）会共用一个 key
+     */
+    static String getDefaultOperationKey(OnDoOperationListener onDoOperationListener) {
+        if (onDoOperationListener == null) {
+            return "";
+        }
+        if (onDoOperationListener instanceof BatchOperationAdapter) {
+            return ((BatchOperationAdapter) onDoOperationListener).getOperationKey();
+        }
+        if (onDoOperationListener instanceof FailoverOperationListener) {
+            return ((FailoverOperationListener) onDoOperationListener).getOperationKey();
+        }
+        return onDoOperationListener.getClass().getName();
+    }
+
+    /**
+     * 本次执行是否被追踪（设置了 RetryTracer 且被采样）
+     */
+    private boolean isTracing() {
+        return executionId != RetryTracer.NOT_SAMPLED;
+    }
+
+    /**
+     * 记录追踪片段，结束时间为当前时间
+     */
+    private void trace(String name, int attempt, long start, Thread startThread) {
+        RetryTracer tracer = builder.getTracer();
+        if (tracer != null && isTracing()) {
+            tracer.record(executionId, name, attempt, start, startThread);
+        }
     }
 
     private boolean isCanCallBack() {
@@ -329,12 +900,36 @@ public class RetryWhenDoOperationHelper<T, F, S> {
         return !isStopNow;
     }
 
+    /**
+     * 停止执行，停止回调  不阻塞，可以在任意线程（包括回调中）调用
+     * 返回后不会再开始新的回调；调用时其他线程中已经开始的回调不会被等待，会继续执行完
+     */
     public void stopNow() {
+        stopAndCountStartedCallBacks();
+    }
+
+    /**
+     * 同 stopNow()
+     *
+     * @return 停止时已经开始、还没有结束的回调数，只有这些回调可能在返回之后才进入回调接口
+     */
+    int stopAndCountStartedCallBacks() {
+        PollingState pollingState = this.pollingState;
+        if (pollingState != null) {
+            pollingState.dispose();
+        }
+        Disposable disposable = this.disposable;
         if (disposable != null) {
             disposable.dispose();
         }
 
-        isStopNow = true;
+        //之后的回调都无法开始；这里不等待已经开始的回调
+        int startedCallBackCount;
+        synchronized (callBackLock) {
+            startedCallBackCount = markStopped();
+        }
+        onExecutionFinished(RetryGroup.RESULT_CANCELLED, null);
+        return startedCallBackCount;
     }
 
     /**
@@ -344,6 +939,8 @@ public class RetryWhenDoOperationHelper<T, F, S> {
      * @return
      */
     private boolean isDisposed(ObservableEmitter emitter) {
+        //disposable 在 onSubscribe 中由其他线程设置，只读取一次
+        Disposable disposable = this.disposable;
         if (disposable == null || emitter == null) {
             return true;
         }
@@ -361,6 +958,91 @@ public class RetryWhenDoOperationHelper<T, F, S> {
         return false;
     }
 
+    /**
+     * 单次操作的回调  携带操作id
+     * 重复的回调通过一次原子操作丢弃；超时被放弃的操作之后回调的成功仍然有效
+     */
+    private class AttemptCallBack implements OperationCallBack<F, S> {
+
+        static final int STATE_IN_FLIGHT = 0;
+        /**
+         * 超时被放弃，已按失败处理，但是操作仍在进行中
+         */
+        static final int STATE_ABANDONED = 1;
+        static final int STATE_REPORTED = 2;
+
+        private final int generation;
+        private final int attemptId;
+        private final ObservableEmitter<OnNextBean> emitter;
+        private final AtomicInteger state = new AtomicInteger(STATE_IN_FLIGHT);
+        private final long attemptStart = isTracing() ? System.nanoTime() : 0;
+        private final Thread attemptThread = isTracing() ? Thread.currentThread() : null;
+        private volatile Disposable timeoutDisposable;
+
+        AttemptCallBack(int generation, int attemptId, ObservableEmitter<OnNextBean> emitter) {
+            this.generation = generation;
+            this.attemptId = attemptId;
+            this.emitter = emitter;
+        }
+
+        /**
+         * @return 之前的状态
+         */
+        int report(int newState) {
+            int oldState = state.getAndSet(newState);
+            Disposable disposable = timeoutDisposable;
+            if (disposable != null && newState == STATE_REPORTED) {
+                disposable.dispose();
+            }
+            return oldState;
+        }
+
+        @Override
+        public void onFailed(F failedBean) {
+            if (report(STATE_REPORTED) != STATE_IN_FLIGHT || generation != runGeneration) {
+                //重复回调、已超时或者已经重新执行
+                return;
+            }
+            trace(RetryTracer.SPAN_ATTEMPT, attemptId, attemptStart, attemptThread);
+            if (builder.isDebug()) {
+                Log.i(TAG, "onFailed failedBean:"
+                        + JsonUtils.javabeanToJson(failedBean) + " Thread:" + Thread.currentThread());
+            }
+            onAttemptFailed(failedBean, null, emitter);
+        }
+
+        /**
+         * 回调成功，则直接结束重试，并回调结果
+         * @param successBean
+         */
+        @Override
+        public void onSuccess(S successBean) {
+            int oldState = report(STATE_REPORTED);
+            if (oldState == STATE_REPORTED || generation != runGeneration) {
+                return;
+            }
+            trace(RetryTracer.SPAN_ATTEMPT, attemptId, attemptStart, attemptThread);
+            if (builder.isDebug()) {
+                Log.i(TAG, "onSuccess successBean:"
+                        + JsonUtils.javabeanToJson(successBean) + " Thread:" + Thread.currentThread().getName());
+            }
+            onAttemptSuccess(successBean, this, oldState == STATE_ABANDONED);
+        }
+
+        /**
+         * 超时，按失败处理并进行下一次重试，操作本身不会被中断
+         */
+        void onTimeout() {
+            if (!state.compareAndSet(STATE_IN_FLIGHT, STATE_ABANDONED) || generation != runGeneration) {
+                return;
+            }
+            if (builder.isDebug()) {
+                Log.i(TAG, String.format("第%d次操作超时，线程：%s", attemptId, Thread.currentThread().getName()));
+            }
+            onAttemptFailed(null, new TimeoutException("第" + attemptId + "次操作超时"), emitter);
+        }
+    }
+
     private class OnNextBean {
         private S s;
         private F f;
@@ -0,0 +1,43 @@
+package com.hero.retrywhendo.bean;
+
+import java.util.List;
+
+/**
+ * 批量操作失败时回调的数据
+ * 重试次数用完后，最终回调中包含仍然失败的项以及已经成功的结果
+ */
+public class BatchFailedBean<I, F, S> {
+
+    /**
+     * 失败的项
+     */
+    private final List<I> failedItems;
+
+    /**
+     * 失败的项对应的失败数据  与 failedItems 一一对应
+     */
+    private final List<F> failedBeans;
+
+    /**
+     * 已经成功的结果  按原始顺序
+     */
+    private final List<S> successBeans;
+
+    public BatchFailedBean(List<I> failedItems, List<F> failedBeans, List<S> successBeans) {
+        this.failedItems = failedItems;
+        this.failedBeans = failedBeans;
+        this.successBeans = successBeans;
+    }
+
+    public List<I> getFailedItems() {
+        return failedItems;
+    }
+
+    public List<F> getFailedBeans() {
+        return failedBeans;
+    }
+
+    public List<S> getSuccessBeans() {
+        return successBeans;
+    }
+}
@@ -0,0 +1,64 @@
+package com.hero.retrywhendo.bean;
+
+/**
+ * 故障转移中单个操作实现的统计
+ */
+public class TargetStatsBean {
+
+    /**
+     * 在传入列表中的位置
+     */
+    private final int index;
+
+    /**
+     * 成功调用耗时的指数加权移动平均，毫秒  还没有成功过为0
+     */
+    private final double ewmaLatencyMillis;
+
+    /**
+     * 失败率的指数加权移动平均  0~1，已按时间衰减
+     */
+    private final double ewmaErrorRate;
+
+    private final long callCount;
+    private final long failedCount;
+
+    public TargetStatsBean(int index, double ewmaLatencyMillis, double ewmaErrorRate, long callCount, long failedCount) {
+        this.index = index;
+        this.ewmaLatencyMillis = ewmaLatencyMillis;
+        this.ewmaErrorRate = ewmaErrorRate;
+        this.callCount = callCount;
+        this.failedCount = failedCount;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public double getEwmaLatencyMillis() {
+        return ewmaLatencyMillis;
+    }
+
+    public double getEwmaErrorRate() {
+        return ewmaErrorRate;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "TargetStatsBean{" +
+                "index=" + index +
+                ", ewmaLatencyMillis=" + ewmaLatencyMillis +
+                ", ewmaErrorRate=" + ewmaErrorRate +
+                ", callCount=" + callCount +
+                ", failedCount=" + failedCount +
+                '}';
+    }
+}
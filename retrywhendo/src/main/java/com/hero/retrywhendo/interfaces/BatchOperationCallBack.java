@@ -0,0 +1,27 @@
+package com.hero.retrywhendo.interfaces;
+
+
+/**
+ * 批量操作的回调
+ * 本次传入的每一项都回调过结果后，本次操作结束；失败的项在下次重试时再处理
+ *
+ * @param <I> 批量中的单项数据
+ * @param <F> 单项失败的回调数据
+ * @param <S> 单项成功的回调数据
+ */
+public interface BatchOperationCallBack<I, F, S> {
+    /**
+     * @param index 该项在本次 onDoBatchOperation 传入的 items 中的位置
+     */
+    void onItemFailed(int index, F failedBean);
+
+    /**
+     * @param index 该项在本次 onDoBatchOperation 传入的 items 中的位置
+     */
+    void onItemSuccess(int index, S successBean);
+
+    /**
+     * 整批失败（如网络异常），本次还没有回调结果的项全部记为失败
+     */
+    void onBatchFailed(F failedBean);
+}
@@ -0,0 +1,25 @@
+package com.hero.retrywhendo.interfaces;
+
+/**
+ * 兜底数据的回调  在回调线程中执行
+ *
+ * @param <S> 成功回调数据结构
+ */
+public interface FallbackCallBack<S> {
+
+    /**
+     * 第一次操作失败后，立即回调的临时结果，后台继续重试
+     * 轮到它回调时执行已经结束（如回调线程为多线程，最终结果先执行），则不再回调，之后也不会回调 onFreshSuccess
+     *
+     * @param fallbackBean FallbackSupplier 提供的兜底数据
+     */
+    void onProvisionalSuccess(S fallbackBean);
+
+    /**
+     * 回调过临时结果之后，重试成功拿到的最新结果，用来替换临时结果
+     * 在 FinalCallBack.onSuccess 之前回调
+     *
+     * @param successBean 最新的结果
+     */
+    void onFreshSuccess(S successBean);
+}
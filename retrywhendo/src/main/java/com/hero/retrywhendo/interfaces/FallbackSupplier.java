@@ -0,0 +1,18 @@
+package com.hero.retrywhendo.interfaces;
+
+/**
+ * 兜底数据的提供者  如上一次成功的数据、本地计算的结果
+ *
+ * @param <T> 操作所传入的参数
+ * @param <S> 成功回调数据结构
+ */
+public interface FallbackSupplier<T, S> {
+
+    /**
+     * 获取兜底数据  在第一次操作失败后调用
+     *
+     * @param t 操作所传入的参数
+     * @return 返回 null 则不回调临时结果
+     */
+    S getFallback(T t);
+}
@@ -0,0 +1,21 @@
+package com.hero.retrywhendo.interfaces;
+
+import java.util.List;
+
+/**
+ * 批量操作暴露的接口
+ *
+ * @param <I> 批量中的单项数据
+ * @param <F> 单项失败回调数据结构
+ * @param <S> 单项成功回调数据结构
+ */
+public interface OnDoBatchOperationListener<I, F, S> {
+
+    /**
+     * 进行批量操作
+     *
+     * @param items                  本次需要处理的数据  第一次为全部数据，重试时只有上次失败的数据
+     * @param batchOperationCallBack 每次操作的回调  需要按位置对 items 中每一项回调成功或者失败
+     */
+    void onDoBatchOperation(List<I> items, BatchOperationCallBack<I, F, S> batchOperationCallBack);
+}
@@ -0,0 +1,23 @@
+package com.hero.retrywhendo.interfaces;
+
+import io.reactivex.rxjava3.annotations.NonNull;
+
+/**
+ * ParkedRetryStore 中每个执行最终的回调  同一个模板的所有执行共用，通过执行id和参数区分
+ *
+ * @param <P> 操作所携带的参数
+ * @param <F> 失败的回调数据
+ * @param <S> 成功的回调数据
+ */
+public interface ParkedFinalCallBack<P, F, S> {
+
+    /**
+     * @param executionId execute() 返回的执行id
+     * @param param       execute() 时传入的参数
+     */
+    void onFailed(long executionId, P param, F failedBean);
+
+    void onSuccess(long executionId, P param, S successBean);
+
+    void onError(long executionId, P param, @NonNull Throwable e);
+}
@@ -0,0 +1,104 @@
+package com.hero.retrywhendo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 自适应的重试间隔
+ * 1、分桶的上下界与 bucketOf 一致，相邻的桶首尾相接；
+ * 2、样本不足时使用重试列表中的间隔，足够后使用学习到的间隔；
+ * 3、已经超过所有样本时按上限等待；
+ * 4、表满时淘汰最久没有使用的 key。
+ * </pre>
+ */
+public class AdaptiveBackoffTest {
+
+    private static final String KEY = "key";
+
+    @Test
+    public void bucketBounds_roundTrip() {
+        for (int bucket = 0; bucket < AdaptiveBackoff.BUCKET_COUNT; bucket++) {
+            long lower = AdaptiveBackoff.bucketLowerMillis(bucket);
+            long upper = AdaptiveBackoff.bucketUpperMillis(bucket);
+            assertTrue(lower <= upper);
+            assertEquals(bucket, AdaptiveBackoff.bucketOf(lower));
+            assertEquals(bucket, AdaptiveBackoff.bucketOf(upper));
+            if (bucket > 0) {
+                assertEquals(AdaptiveBackoff.bucketUpperMillis(bucket - 1) + 1, lower);
+            }
+        }
+        //每个桶的误差不超过25%
+        for (int bucket = 4; bucket < AdaptiveBackoff.BUCKET_COUNT; bucket++) {
+            long lower = AdaptiveBackoff.bucketLowerMillis(bucket);
+            long upper = AdaptiveBackoff.bucketUpperMillis(bucket);
+            assertTrue(upper - lower + 1 <= lower / 4 + 1);
+        }
+        assertEquals(0, AdaptiveBackoff.bucketOf(-5));
+        assertEquals(AdaptiveBackoff.BUCKET_COUNT - 1, AdaptiveBackoff.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void nextDelay_usesFallbackUntilMinSamples() {
+        AdaptiveBackoff backoff = new AdaptiveBackoff(8)
+                .setBounds(100, 60_000)
+                .setMinSamples(5);
+        for (int i = 0; i < 4; i++) {
+            backoff.record(KEY, 1000);
+            assertEquals(2000, backoff.nextDelayMillis(KEY, 0, 2000));
+        }
+        assertEquals(2000, backoff.nextDelayMillis("other", 0, 2000));
+
+        backoff.record(KEY, 1000);
+        assertEquals(5, backoff.getSampleCount(KEY));
+        long lower = AdaptiveBackoff.bucketLowerMillis(AdaptiveBackoff.bucketOf(1000));
+        long upper = AdaptiveBackoff.bucketUpperMillis(AdaptiveBackoff.bucketOf(1000));
+        long delay = backoff.nextDelayMillis(KEY, 0, 2000);
+        assertTrue(delay >= lower && delay <= upper);
+
+        //已经等待的时间从间隔中减去
+        long delayAfterWaiting = backoff.nextDelayMillis(KEY, 500, 2000);
+        assertTrue(delayAfterWaiting >= lower - 500 && delayAfterWaiting <= upper - 500);
+        //不小于下限
+        assertEquals(100, backoff.nextDelayMillis(KEY, upper, 2000));
+    }
+
+    @Test
+    public void nextDelay_elapsedBeyondAllSamples_returnsMaxDelay() {
+        AdaptiveBackoff backoff = new AdaptiveBackoff(8)
+                .setBounds(100, 30_000)
+                .setMinSamples(1);
+        backoff.record(KEY, 200);
+        backoff.record(KEY, 1000);
+
+        assertEquals(30_000, backoff.nextDelayMillis(KEY, 5000, 2000));
+    }
+
+    @Test
+    public void full_evictsLeastRecentlyUsedKey() {
+        AdaptiveBackoff backoff = new AdaptiveBackoff(8).setMinSamples(1);
+        for (int i = 0; i < 8; i++) {
+            backoff.record("key" + i, 1000);
+        }
+        //key0 最近使用过，key1 成为最久没有使用的
+        backoff.record("key0", 1000);
+
+        backoff.record("key8", 1000);
+
+        assertEquals(0, backoff.getSampleCount("key1"));
+        assertEquals(2, backoff.getSampleCount("key0"));
+        assertEquals(1, backoff.getSampleCount("key8"));
+        for (int i = 2; i < 8; i++) {
+            assertEquals(1, backoff.getSampleCount("key" + i));
+        }
+
+        //查询间隔也算使用：key2 被查询后，下一次淘汰 key3
+        backoff.nextDelayMillis("key2", 0, 2000);
+        backoff.record("key9", 1000);
+        assertEquals(1, backoff.getSampleCount("key2"));
+        assertEquals(0, backoff.getSampleCount("key3"));
+        assertEquals(1, backoff.getSampleCount("key9"));
+    }
+}
@@ -0,0 +1,178 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.bean.BatchFailedBean;
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoBatchOperationListener;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 批量操作
+ * 1、重复的项按位置分别回调，结果按原始顺序汇总；
+ * 2、重试时只处理上次失败的项；
+ * 3、同一个 Builder 创建的多个执行各自保存进度；
+ * 4、未设置 key 时，批量操作、故障转移按被包装的操作接口区分 key。
+ * </pre>
+ */
+public class BatchOperationAdapterTest {
+
+    @Test(timeout = 10_000)
+    public void duplicateItems_mergedInOriginalOrder() throws Exception {
+        ResultCallBack finalCallBack = new ResultCallBack();
+        newBuilder(finalCallBack)
+                .setParam(Arrays.asList("x", "x", "x"))
+                .setOnDoBatchOperationListener((OnDoBatchOperationListener<String, String, String>) (items, callBack) -> {
+                    //倒序回调，结果仍按原始顺序
+                    for (int i = items.size() - 1; i >= 0; i--) {
+                        callBack.onItemSuccess(i, "v" + i);
+                    }
+                })
+                .build()
+                .doRetryWhenOperation();
+
+        assertTrue(finalCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("v0", "v1", "v2"), finalCallBack.successList.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void retry_receivesOnlyFailedItems() throws Exception {
+        ResultCallBack finalCallBack = new ResultCallBack();
+        List<List<String>> rounds = Collections.synchronizedList(new ArrayList<>());
+        newBuilder(finalCallBack)
+                .setParam(Arrays.asList("a", "a", "b"))
+                .setOnDoBatchOperationListener((OnDoBatchOperationListener<String, String, String>) (items, callBack) -> {
+                    int round = rounds.size();
+                    rounds.add(new ArrayList<>(items));
+                    for (int i = 0; i < items.size(); i++) {
+                        if (round == 0 && i == 1) {
+                            //与第0项相等，只有这一项失败
+                            callBack.onItemFailed(i, "failed");
+                        } else {
+                            callBack.onItemSuccess(i, items.get(i) + round);
+                        }
+                    }
+                })
+                .build()
+                .doRetryWhenOperation();
+
+        assertTrue(finalCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList("a", "a", "b"), Collections.singletonList("a")), rounds);
+        assertEquals(Arrays.asList("a0", "a1", "b0"), finalCallBack.successList.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void helpersFromOneBuilder_keepSeparateProgress() throws Exception {
+        Set<String> failedItems = ConcurrentHashMap.newKeySet();
+        List<List<String>> rounds = Collections.synchronizedList(new ArrayList<>());
+        ResultCallBack firstCallBack = new ResultCallBack();
+        ResultCallBack secondCallBack = new ResultCallBack();
+        Builder builder = newBuilder(null)
+                .setOnDoBatchOperationListener((OnDoBatchOperationListener<String, String, String>) (items, callBack) -> {
+                    rounds.add(new ArrayList<>(items));
+                    for (int i = 0; i < items.size(); i++) {
+                        String item = items.get(i);
+                        //x 开头的项第一次失败
+                        if (item.startsWith("x") && failedItems.add(item)) {
+                            callBack.onItemFailed(i, "failed");
+                        } else {
+                            callBack.onItemSuccess(i, item.toUpperCase());
+                        }
+                    }
+                });
+
+        RetryWhenDoOperationHelper first = builder
+                .setParam(Arrays.asList("a1", "x1"))
+                .setFinalCallBack(firstCallBack)
+                .build();
+        RetryWhenDoOperationHelper second = builder
+                .setParam(Arrays.asList("b1", "b2", "x2"))
+                .setFinalCallBack(secondCallBack)
+                .build();
+        //两个执行同时在等待重试
+        first.doRetryWhenOperation();
+        second.doRetryWhenOperation();
+
+        assertTrue(firstCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(secondCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("A1", "X1"), firstCallBack.successList.get());
+        assertEquals(Arrays.asList("B1", "B2", "X2"), secondCallBack.successList.get());
+        //每个执行第一次处理自己的全部项，重试只处理自己失败的项
+        assertEquals(4, rounds.size());
+        assertTrue(rounds.contains(Arrays.asList("a1", "x1")));
+        assertTrue(rounds.contains(Arrays.asList("b1", "b2", "x2")));
+        assertTrue(rounds.contains(Collections.singletonList("x1")));
+        assertTrue(rounds.contains(Collections.singletonList("x2")));
+    }
+
+    @Test
+    public void defaultOperationKey_followsWrappedListener() {
+        OnDoBatchOperationListener<String, String, String> firstBatch = (items, callBack) -> {
+        };
+        OnDoBatchOperationListener<String, String, String> secondBatch = (items, callBack) -> {
+        };
+        String firstBatchKey = RetryWhenDoOperationHelper.getDefaultOperationKey(new BatchOperationAdapter<>(firstBatch));
+        assertEquals(firstBatch.getClass().getName(), firstBatchKey);
+        assertNotEquals(firstBatchKey, RetryWhenDoOperationHelper.getDefaultOperationKey(new BatchOperationAdapter<>(secondBatch)));
+        assertEquals(firstBatchKey, RetryWhenDoOperationHelper.getDefaultOperationKey(new BatchOperationAdapter<>(firstBatch).newRun()));
+
+        OnDoOperationListener<String, String, String> primary = (s, operationCallBack) -> {
+        };
+        OnDoOperationListener<String, String, String> backup = (s, operationCallBack) -> {
+        };
+        String failoverKey = RetryWhenDoOperationHelper.getDefaultOperationKey(new FailoverOperationListener<>(Arrays.asList(primary, backup)));
+        assertEquals(failoverKey, RetryWhenDoOperationHelper.getDefaultOperationKey(new FailoverOperationListener<>(Arrays.asList(primary, backup))));
+        assertNotEquals(failoverKey, RetryWhenDoOperationHelper.getDefaultOperationKey(new FailoverOperationListener<>(Collections.singletonList(primary))));
+        assertNotEquals(failoverKey, RetryWhenDoOperationHelper.getDefaultOperationKey(new FailoverOperationListener<>(Arrays.asList(backup, primary))));
+    }
+
+    private Builder newBuilder(ResultCallBack finalCallBack) {
+        return RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(Arrays.asList(50))
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setFinalCallBack(finalCallBack);
+    }
+
+    /**
+     * 记录最终成功的结果
+     */
+    private static class ResultCallBack implements FinalCallBack<BatchFailedBean<String, String, String>, List<String>> {
+        private final CountDownLatch finishedLatch = new CountDownLatch(1);
+        private final AtomicReference<List<String>> successList = new AtomicReference<>();
+
+        @Override
+        public void onFailed(BatchFailedBean<String, String, String> failedBean) {
+            finishedLatch.countDown();
+        }
+
+        @Override
+        public void onSuccess(List<String> successBean) {
+            successList.set(successBean);
+            finishedLatch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            finishedLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * <pre>
+ * 等待重试的执行占用的内存
+ * 同样数量的执行都在等待重试时，分别统计 RetryWhenDoOperationHelper（整条 rxjava 链）
+ * 和 ParkedRetryStore（紧凑的记录）平均每个执行占用的堆内存，两者的参数相同。
+ * 依赖 System.gc()，耗时长且结果受 JVM 影响，默认不运行；需要时去掉 @Ignore 手动运行，结果只打印在控制台。
+ * </pre>
+ */
+@Ignore("基准测试，手动运行")
+public class ParkedRetryStoreFootprintBenchmark {
+
+    private static final int EXECUTION_COUNT = 20_000;
+
+    /**
+     * 重试间隔足够长，测量期间都在等待
+     */
+    private static final List<Integer> DELAY_TIME_LIST = Arrays.asList(3600, 3600);
+
+    @Test
+    public void printHeapPerParkedExecution() throws Exception {
+        List<Object> params = newParams();
+        long baseline = usedHeap();
+
+        //rxjava 链
+        AtomicInteger rxAttemptCount = new AtomicInteger();
+        List<RetryWhenDoOperationHelper> helpers = new ArrayList<>(EXECUTION_COUNT);
+        for (Object param : params) {
+            RetryWhenDoOperationHelper helper = newBuilder(rxAttemptCount)
+                    .setParam(param)
+                    .build();
+            helper.doRetryWhenOperation();
+            helpers.add(helper);
+        }
+        awaitCount(rxAttemptCount, EXECUTION_COUNT);
+        long rxBytes = (usedHeap() - baseline) / EXECUTION_COUNT;
+        for (RetryWhenDoOperationHelper helper : helpers) {
+            helper.stopNow();
+        }
+        helpers.clear();
+        baseline = usedHeap();
+
+        //紧凑的记录
+        AtomicInteger parkedAttemptCount = new AtomicInteger();
+        ParkedRetryStore store = new ParkedRetryStore(EXECUTION_COUNT);
+        int templateId = store.register(newBuilder(parkedAttemptCount));
+        for (Object param : params) {
+            store.execute(templateId, param);
+        }
+        awaitCount(parkedAttemptCount, EXECUTION_COUNT);
+        awaitParked(store, EXECUTION_COUNT);
+        long parkedBytes = (usedHeap() - baseline) / EXECUTION_COUNT;
+        store.cancelAll();
+
+        System.out.println(String.format("每个等待重试的执行：rxjava 链 %d 字节，紧凑记录 %d 字节", rxBytes, parkedBytes));
+    }
+
+    /**
+     * 每次操作都失败
+     */
+    private Builder newBuilder(AtomicInteger attemptCount) {
+        return RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(DELAY_TIME_LIST)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setFinalCallBack(new FinalCallBack<String, String>() {
+                    @Override
+                    public void onFailed(String failedBean) {
+                    }
+
+                    @Override
+                    public void onSuccess(String successBean) {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+                })
+                .setOnDoOperationListener((OnDoOperationListener<Object, String, String>) (o, operationCallBack) -> {
+                    attemptCount.incrementAndGet();
+                    operationCallBack.onFailed("failed");
+                });
+    }
+
+    private static List<Object> newParams() {
+        List<Object> params = new ArrayList<>(EXECUTION_COUNT);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            params.add(new Object());
+        }
+        return params;
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        while (count.get() < expected) {
+            Thread.sleep(10);
+        }
+        //等待失败后进入等待重试
+        Thread.sleep(500);
+    }
+
+    private static void awaitParked(ParkedRetryStore store, int expected) throws InterruptedException {
+        while (store.getParkedCount() < expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
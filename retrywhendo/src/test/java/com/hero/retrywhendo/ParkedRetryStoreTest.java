@@ -0,0 +1,177 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoBatchOperationListener;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.ParkedFinalCallBack;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <pre>
+ * 等待重试的紧凑记录
+ * 1、失败后按重试列表重试，直到成功；
+ * 2、ParkedFinalCallBack 带有执行id和参数，可以区分同一个模板的各个执行；
+ * 3、unregister() 只丢弃该模板的记录，其他模板的记录都保留；
+ * 4、批量操作的模板在注册时拒绝，不会让多个执行共用进度。
+ * </pre>
+ */
+public class ParkedRetryStoreTest {
+
+    @Test(timeout = 30_000)
+    public void parkedRecord_retriesUntilSuccess() throws Exception {
+        CountDownLatch finishedLatch = new CountDownLatch(1);
+        AtomicInteger successCount = new AtomicInteger();
+        AtomicInteger attemptCount = new AtomicInteger();
+        Builder builder = RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(Arrays.asList(10, 10, 10))
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setFinalCallBack(new FinalCallBack<String, String>() {
+                    @Override
+                    public void onFailed(String failedBean) {
+                        finishedLatch.countDown();
+                    }
+
+                    @Override
+                    public void onSuccess(String successBean) {
+                        successCount.incrementAndGet();
+                        finishedLatch.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        finishedLatch.countDown();
+                    }
+                })
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    if (attemptCount.incrementAndGet() < 3) {
+                        operationCallBack.onFailed("failed");
+                    } else {
+                        operationCallBack.onSuccess(s);
+                    }
+                });
+        ParkedRetryStore store = new ParkedRetryStore(16);
+        store.execute(store.register(builder), "param");
+
+        assertTrue(finishedLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, successCount.get());
+        assertEquals(3, attemptCount.get());
+        assertEquals(0, store.getParkedCount());
+    }
+
+    @Test(timeout = 30_000)
+    public void parkedFinalCallBack_identifiesEachExecution() throws Exception {
+        CountDownLatch finishedLatch = new CountDownLatch(3);
+        Map<Long, String> results = new ConcurrentHashMap<>();
+        Builder builder = RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(Arrays.asList(10))
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    if (s.startsWith("success")) {
+                        operationCallBack.onSuccess("ok");
+                    } else {
+                        operationCallBack.onFailed("no");
+                    }
+                });
+        ParkedFinalCallBack<String, String, String> resultCallBack = new ParkedFinalCallBack<String, String, String>() {
+            @Override
+            public void onFailed(long executionId, String param, String failedBean) {
+                results.put(executionId, param + ":" + failedBean);
+                finishedLatch.countDown();
+            }
+
+            @Override
+            public void onSuccess(long executionId, String param, String successBean) {
+                results.put(executionId, param + ":" + successBean);
+                finishedLatch.countDown();
+            }
+
+            @Override
+            public void onError(long executionId, String param, Throwable e) {
+                results.put(executionId, param + ":" + e);
+                finishedLatch.countDown();
+            }
+        };
+        ParkedRetryStore store = new ParkedRetryStore(16);
+        int templateId = store.register(builder, resultCallBack);
+        long firstId = store.execute(templateId, "success1");
+        long secondId = store.execute(templateId, "failed");
+        long thirdId = store.execute(templateId, "success2");
+
+        assertTrue(finishedLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(3, results.size());
+        assertEquals("success1:ok", results.get(firstId));
+        assertEquals("failed:no", results.get(secondId));
+        assertEquals("success2:ok", results.get(thirdId));
+    }
+
+    @Test
+    public void unregister_keepsOtherTemplatesRecords() {
+        //在当前线程中同步执行，失败后立即保存为记录；间隔足够长，测试期间都不会到期
+        ParkedRetryStore store = new ParkedRetryStore(1024);
+        int[] templateIds = new int[3];
+        //先保存的模板间隔最长，之后保存的记录上浮，把它的记录压到堆的下层，彼此成为父子节点
+        int[] delays = {3000, 1000, 2000};
+        for (int i = 0; i < templateIds.length; i++) {
+            templateIds[i] = store.register(RetryWhenDoOperationHelper.getInstance()
+                    .setDelayTimeList(Arrays.asList(delays[i]))
+                    .setSubscribeOnScheduler(Schedulers.trampoline())
+                    .setOnDoOperationListener((OnDoOperationListener<Object, String, String>) (o, operationCallBack) ->
+                            operationCallBack.onFailed("failed")));
+        }
+        for (int i = 0; i < 300; i++) {
+            store.execute(templateIds[i / 100], i);
+        }
+        assertEquals(300, store.getParkedCount());
+
+        store.unregister(templateIds[0]);
+        assertEquals(200, store.getParkedCount());
+
+        store.unregister(templateIds[2]);
+        assertEquals(100, store.getParkedCount());
+
+        store.cancelAll();
+        assertEquals(0, store.getParkedCount());
+    }
+
+    @Test
+    public void batchTemplate_rejected() {
+        AtomicInteger attemptCount = new AtomicInteger();
+        ParkedRetryStore store = new ParkedRetryStore(16);
+        Builder builder = RetryWhenDoOperationHelper.getInstance()
+                .setSubscribeOnScheduler(Schedulers.trampoline())
+                .setOnDoBatchOperationListener((OnDoBatchOperationListener<String, String, String>) (items, callBack) -> {
+                    attemptCount.incrementAndGet();
+                    for (int i = 0; i < items.size(); i++) {
+                        callBack.onItemSuccess(i, items.get(i));
+                    }
+                });
+        try {
+            int templateId = store.register(builder);
+            //注册成功时，两个执行会共用同一份进度，第二个执行得到第一个的结果
+            store.execute(templateId, Arrays.asList("a1", "a2"));
+            store.execute(templateId, Arrays.asList("b1", "b2", "b3"));
+            fail("批量操作的模板应该被拒绝");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(0, attemptCount.get());
+        }
+        assertEquals(0, store.getParkedCount());
+    }
+}
@@ -0,0 +1,178 @@
+package com.hero.retrywhendo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 按优先级调度
+ * 用 TestScheduler 先提交全部任务再统一执行，检查出队顺序：
+ * 1、按优先级严格排序；
+ * 2、同一优先级中第一次操作排在重试之前；
+ * 3、不同 key 之间加权公平排队；
+ * 4、同时执行的任务数不超过 maxConcurrency；
+ * 5、排队等待时间的统计；
+ * 6、任务中的异常交给 RxJavaPlugins，之后的任务继续执行。
+ * </pre>
+ */
+public class PriorityRetrySchedulerTest {
+
+    private final TestScheduler testScheduler = new TestScheduler();
+
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        RxJavaPlugins.reset();
+    }
+
+    @Test
+    public void strictPriority() {
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1);
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_BACKGROUND, "key", true, "background");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "key", true, "default1");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_INTERACTIVE, "key", false, "interactive");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "key", true, "default2");
+        assertEquals(4, scheduler.getQueueSize());
+
+        testScheduler.triggerActions();
+
+        assertEquals(Arrays.asList("interactive", "default1", "default2", "background"), order);
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void firstAttemptsBeforeRetries() {
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1);
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "a", false, "retry1");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "b", false, "retry2");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "c", true, "first");
+
+        testScheduler.triggerActions();
+
+        assertEquals(Arrays.asList("first", "retry1", "retry2"), order);
+    }
+
+    @Test
+    public void fairQueuingBetweenKeys() {
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1);
+        for (int i = 1; i <= 4; i++) {
+            submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "a", false, "a" + i);
+        }
+        for (int i = 1; i <= 2; i++) {
+            submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "b", false, "b" + i);
+        }
+
+        testScheduler.triggerActions();
+
+        //a 先积压了4个，b 不必等它们全部执行完
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "a4"), order);
+    }
+
+    @Test
+    public void weightedKeys() {
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1)
+                .setKeyWeight("a", 2);
+        for (int i = 1; i <= 4; i++) {
+            submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "a", false, "a" + i);
+        }
+        for (int i = 1; i <= 2; i++) {
+            submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "b", false, "b" + i);
+        }
+
+        testScheduler.triggerActions();
+
+        //权重2的 a 分到两倍的份额
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3", "b2", "a4"), order);
+    }
+
+    @Test(timeout = 10_000)
+    public void maxConcurrency_isNotExceeded() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            PriorityRetryScheduler scheduler = new PriorityRetryScheduler(Schedulers.from(executor), 2);
+            AtomicInteger runningCount = new AtomicInteger();
+            AtomicInteger maxRunningCount = new AtomicInteger();
+            CountDownLatch finishedLatch = new CountDownLatch(20);
+            for (int i = 0; i < 20; i++) {
+                scheduler.submit(PriorityRetryScheduler.PRIORITY_DEFAULT, "key" + i % 3, i % 2 == 0, () -> {
+                    int running = runningCount.incrementAndGet();
+                    maxRunningCount.accumulateAndGet(running, Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    runningCount.decrementAndGet();
+                    finishedLatch.countDown();
+                });
+            }
+
+            assertTrue(finishedLatch.await(5, TimeUnit.SECONDS));
+            assertEquals(2, maxRunningCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queueWaitStats() throws Exception {
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1);
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_INTERACTIVE, "key", true, "interactive");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_BACKGROUND, "key", true, "background1");
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_BACKGROUND, "key", false, "background2");
+        Thread.sleep(20);
+
+        testScheduler.triggerActions();
+
+        assertEquals(1, scheduler.getQueueWaitCount(PriorityRetryScheduler.PRIORITY_INTERACTIVE));
+        assertEquals(0, scheduler.getQueueWaitCount(PriorityRetryScheduler.PRIORITY_DEFAULT));
+        assertEquals(2, scheduler.getQueueWaitCount(PriorityRetryScheduler.PRIORITY_BACKGROUND));
+        assertEquals(0, scheduler.getAverageQueueWaitMillis(PriorityRetryScheduler.PRIORITY_DEFAULT), 0);
+        double average = scheduler.getAverageQueueWaitMillis(PriorityRetryScheduler.PRIORITY_BACKGROUND);
+        assertTrue(average >= 20);
+        assertTrue(scheduler.getMaxQueueWaitMillis(PriorityRetryScheduler.PRIORITY_BACKGROUND) >= average);
+
+        scheduler.resetQueueWaitStats();
+        assertEquals(0, scheduler.getQueueWaitCount(PriorityRetryScheduler.PRIORITY_BACKGROUND));
+        assertEquals(0, scheduler.getMaxQueueWaitMillis(PriorityRetryScheduler.PRIORITY_BACKGROUND), 0);
+    }
+
+    @Test
+    public void taskException_routedToRxJavaPlugins() {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        RxJavaPlugins.setErrorHandler(error::set);
+        PriorityRetryScheduler scheduler = new PriorityRetryScheduler(testScheduler, 1);
+        scheduler.submit(PriorityRetryScheduler.PRIORITY_DEFAULT, "key", true, () -> {
+            throw new IllegalStateException("task");
+        });
+        submit(scheduler, PriorityRetryScheduler.PRIORITY_DEFAULT, "key", false, "next");
+
+        testScheduler.triggerActions();
+
+        assertTrue(error.get() instanceof IllegalStateException);
+        assertEquals(Collections.singletonList("next"), order);
+    }
+
+    private void submit(PriorityRetryScheduler scheduler, int priority, String key, boolean isFirstAttempt, String name) {
+        scheduler.submit(priority, key, isFirstAttempt, () -> order.add(name));
+    }
+}
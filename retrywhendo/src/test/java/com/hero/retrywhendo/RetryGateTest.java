@@ -0,0 +1,140 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.plugins.RxJavaPlugins;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 重试闸门
+ * 使用 RetryGate.create() 作为本地替身信号：关闭闸门，等重试到期，
+ * 检查重试被挂起；重新打开后一起放行，并按 stagger 错开启动。
+ * 外部信号出错时闸门打开，异常交给 RxJavaPlugins。
+ * </pre>
+ */
+public class RetryGateTest {
+
+    private static final int EXECUTION_COUNT = 5;
+
+    private static final long STAGGER_MILLIS = 50;
+
+    @Test(timeout = 30_000)
+    public void closedGate_holdsDueRetries_andReleasesThemStaggered() throws Exception {
+        RetryGate retryGate = RetryGate.create().setStagger(STAGGER_MILLIS, TimeUnit.MILLISECONDS);
+        retryGate.close();
+
+        CountDownLatch firstFailedLatch = new CountDownLatch(EXECUTION_COUNT);
+        CountDownLatch finishedLatch = new CountDownLatch(EXECUTION_COUNT);
+        AtomicInteger successCount = new AtomicInteger();
+        List<Long> retryStartNanos = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            AtomicInteger attemptCount = new AtomicInteger();
+            RetryWhenDoOperationHelper.getInstance()
+                    .setDelayTimeList(Arrays.asList(1))
+                    .setUnit(TimeUnit.MILLISECONDS)
+                    .setSubscribeOnScheduler(Schedulers.io())
+                    .setObserveOnScheduler(Schedulers.computation())
+                    .setRetryGate(retryGate)
+                    .setParam("param")
+                    .setFinalCallBack(new FinalCallBack<String, String>() {
+                        @Override
+                        public void onFailed(String failedBean) {
+                            finishedLatch.countDown();
+                        }
+
+                        @Override
+                        public void onSuccess(String successBean) {
+                            successCount.incrementAndGet();
+                            finishedLatch.countDown();
+                        }
+
+                        @Override
+                        public void onError(Throwable e) {
+                            finishedLatch.countDown();
+                        }
+                    })
+                    .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                        if (attemptCount.incrementAndGet() == 1) {
+                            operationCallBack.onFailed("failed");
+                            firstFailedLatch.countDown();
+                        } else {
+                            retryStartNanos.add(System.nanoTime());
+                            operationCallBack.onSuccess("success");
+                        }
+                    })
+                    .build()
+                    .doRetryWhenOperation();
+        }
+
+        assertTrue(firstFailedLatch.await(10, TimeUnit.SECONDS));
+        //重试间隔1毫秒，早已到期，闸门关闭时仍然挂起
+        Thread.sleep(200);
+        assertEquals(0, retryStartNanos.size());
+        assertEquals(EXECUTION_COUNT, finishedLatch.getCount());
+
+        retryGate.open();
+        assertTrue(finishedLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(EXECUTION_COUNT, successCount.get());
+        assertEquals(EXECUTION_COUNT, retryStartNanos.size());
+
+        //一起放行，错开启动：相邻的间隔约为 stagger
+        List<Long> starts = new ArrayList<>(retryStartNanos);
+        Collections.sort(starts);
+        for (int i = 1; i < starts.size(); i++) {
+            long gapMillis = TimeUnit.NANOSECONDS.toMillis(starts.get(i) - starts.get(i - 1));
+            assertTrue("相邻的重试间隔 " + gapMillis + " 毫秒", gapMillis >= STAGGER_MILLIS / 2);
+        }
+        long spanMillis = TimeUnit.NANOSECONDS.toMillis(starts.get(starts.size() - 1) - starts.get(0));
+        assertTrue("放行用时 " + spanMillis + " 毫秒", spanMillis < STAGGER_MILLIS * EXECUTION_COUNT * 4);
+    }
+
+    @Test(timeout = 10_000)
+    public void openGate_passesImmediately() {
+        RetryGate retryGate = RetryGate.create();
+        assertTrue(retryGate.isOpen());
+        assertEquals(Long.valueOf(0), retryGate.awaitOpen().blockingFirst());
+        retryGate.close();
+        assertTrue(!retryGate.isOpen());
+    }
+
+    @Test(timeout = 10_000)
+    public void signalError_opensGate_andReportsError() {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        RxJavaPlugins.setErrorHandler(error::set);
+        try {
+            PublishSubject<Boolean> signal = PublishSubject.create();
+            RetryGate retryGate = RetryGate.from(signal);
+            signal.onNext(false);
+            assertTrue(!retryGate.isOpen());
+
+            TestObserver<Long> waiting = retryGate.awaitOpen().test();
+            waiting.assertNoValues();
+
+            signal.onError(new IllegalStateException("signal"));
+
+            assertTrue(retryGate.isOpen());
+            waiting.awaitCount(1).assertValue(0L);
+            assertTrue(error.get() instanceof IllegalStateException);
+        } finally {
+            RxJavaPlugins.reset();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 一组执行的生命周期管理
+ * 执行在组中重新开始时，上一次的记录按取消结束，组最终能回到空闲，awaitAll() 完成。
+ * </pre>
+ */
+public class RetryGroupTest {
+
+    @Test(timeout = 10_000)
+    public void restartedHelper_groupBecomesIdle() throws Exception {
+        RetryGroup retryGroup = RetryGroup.create();
+        AtomicReference<CountDownLatch> attemptedLatch = new AtomicReference<>(new CountDownLatch(1));
+        RetryWhenDoOperationHelper helper = RetryWhenDoOperationHelper.getInstance()
+                //重试间隔足够长，测试期间一直在等待重试
+                .setDelayTimeList(Arrays.asList(3600))
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setRetryGroup(retryGroup)
+                .setParam("param")
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    operationCallBack.onFailed("failed");
+                    attemptedLatch.get().countDown();
+                })
+                .build();
+
+        helper.doRetryWhenOperation();
+        assertTrue(attemptedLatch.get().await(5, TimeUnit.SECONDS));
+        assertEquals(1, retryGroup.getActiveCount());
+
+        //等待重试期间重新开始
+        attemptedLatch.set(new CountDownLatch(1));
+        helper.doRetryWhenOperation();
+        assertTrue(attemptedLatch.get().await(5, TimeUnit.SECONDS));
+        assertEquals(1, retryGroup.getActiveCount());
+        assertEquals(1, retryGroup.getCancelledCount());
+
+        helper.stopNow();
+
+        assertEquals(0, retryGroup.getActiveCount());
+        assertTrue(retryGroup.awaitAll().blockingAwait(5, TimeUnit.SECONDS));
+        assertEquals(2, retryGroup.getCancelledCount());
+    }
+}
@@ -0,0 +1,192 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FallbackCallBack;
+import com.hero.retrywhendo.interfaces.FallbackSupplier;
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 单次操作的回调
+ * 1、超时被放弃的操作之后回调成功，作为最终结果，并取消等待中的重试；
+ * 2、同一个回调先失败再成功，成功被丢弃；
+ * 3、多线程的回调线程中临时结果晚于最终结果执行时被跳过，不会覆盖最终结果。
+ * </pre>
+ */
+public class RetryWhenDoOperationHelperAttemptTest {
+
+    @Test(timeout = 10_000)
+    public void abandonedAttemptLateSuccess_finishesAndCancelsPendingRetry() throws Exception {
+        RecordingCallBack finalCallBack = new RecordingCallBack();
+        AtomicInteger attemptCount = new AtomicInteger();
+        AtomicReference<OperationCallBack<String, String>> heldCallBack = new AtomicReference<>();
+        CountDownLatch attemptedLatch = new CountDownLatch(1);
+
+        Disposable disposable = RetryWhenDoOperationHelper.getInstance()
+                //重试间隔足够长，测试期间重试不会到期
+                .setDelayTimeList(Arrays.asList(3600))
+                .setAttemptTimeout(20, TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setParam("param")
+                .setFinalCallBack(finalCallBack)
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    attemptCount.incrementAndGet();
+                    //不回调，等待超时
+                    heldCallBack.set(operationCallBack);
+                    attemptedLatch.countDown();
+                })
+                .build()
+                .doRetryWhenOperation();
+
+        assertNotNull(disposable);
+        assertTrue(attemptedLatch.await(5, TimeUnit.SECONDS));
+        //超时后进入等待重试
+        Thread.sleep(200);
+        assertEquals(0, finalCallBack.total());
+        assertTrue(!disposable.isDisposed());
+
+        heldCallBack.get().onSuccess("late");
+
+        assertTrue(finalCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("late", finalCallBack.successBean.get());
+        assertTrue("等待中的重试应被取消", disposable.isDisposed());
+        Thread.sleep(100);
+        assertEquals(1, finalCallBack.total());
+        assertEquals(1, attemptCount.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void successAfterFailedOnSameCallBack_isDiscarded() throws Exception {
+        RecordingCallBack finalCallBack = new RecordingCallBack();
+        AtomicInteger attemptCount = new AtomicInteger();
+
+        RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(Arrays.asList(1))
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.computation())
+                .setParam("param")
+                .setFinalCallBack(finalCallBack)
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    int attempt = attemptCount.incrementAndGet();
+                    operationCallBack.onFailed("failed" + attempt);
+                    //已经回调过失败，之后的成功丢弃
+                    operationCallBack.onSuccess("success" + attempt);
+                })
+                .build()
+                .doRetryWhenOperation();
+
+        assertTrue(finalCallBack.finishedLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(2, attemptCount.get());
+        assertEquals(0, finalCallBack.successCount.get());
+        assertEquals(1, finalCallBack.failedCount.get());
+        assertEquals("failed2", finalCallBack.failedBean.get());
+        assertEquals(1, finalCallBack.total());
+    }
+
+    @Test(timeout = 10_000)
+    public void provisionalRunningAfterFinalResult_isSkipped() throws Exception {
+        RecordingCallBack finalCallBack = new RecordingCallBack();
+        List<String> fallbackEvents = Collections.synchronizedList(new ArrayList<>());
+        //回调线程只收集任务，由测试决定执行顺序，模拟多线程中后 post 的先执行
+        List<Runnable> posted = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attemptCount = new AtomicInteger();
+
+        RetryWhenDoOperationHelper.getInstance()
+                .setDelayTimeList(Arrays.asList(1))
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.from(posted::add))
+                .setParam("param")
+                .setFinalCallBack(finalCallBack)
+                .setFallbackSupplier((FallbackSupplier<String, String>) s -> "fallback")
+                .setFallbackCallBack(new FallbackCallBack<String>() {
+                    @Override
+                    public void onProvisionalSuccess(String fallbackBean) {
+                        fallbackEvents.add("provisional");
+                    }
+
+                    @Override
+                    public void onFreshSuccess(String successBean) {
+                        fallbackEvents.add("fresh");
+                    }
+                })
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                    if (attemptCount.incrementAndGet() == 1) {
+                        operationCallBack.onFailed("failed");
+                    } else {
+                        operationCallBack.onSuccess("success");
+                    }
+                })
+                .build()
+                .doRetryWhenOperation();
+
+        while (posted.size() < 2) {
+            Thread.sleep(5);
+        }
+        //最终结果先执行，之后才轮到临时结果
+        posted.get(1).run();
+        posted.get(0).run();
+
+        assertEquals("success", finalCallBack.successBean.get());
+        assertEquals(1, finalCallBack.total());
+        assertEquals(Collections.emptyList(), fallbackEvents);
+    }
+
+    /**
+     * 记录最终回调
+     */
+    private static class RecordingCallBack implements FinalCallBack<String, String> {
+        private final CountDownLatch finishedLatch = new CountDownLatch(1);
+        private final AtomicInteger failedCount = new AtomicInteger();
+        private final AtomicInteger successCount = new AtomicInteger();
+        private final AtomicInteger errorCount = new AtomicInteger();
+        private final AtomicReference<String> failedBean = new AtomicReference<>();
+        private final AtomicReference<String> successBean = new AtomicReference<>();
+
+        @Override
+        public void onFailed(String failedBean) {
+            this.failedBean.set(failedBean);
+            failedCount.incrementAndGet();
+            finishedLatch.countDown();
+        }
+
+        @Override
+        public void onSuccess(String successBean) {
+            this.successBean.set(successBean);
+            successCount.incrementAndGet();
+            finishedLatch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            errorCount.incrementAndGet();
+            finishedLatch.countDown();
+        }
+
+        int total() {
+            return failedCount.get() + successCount.get() + errorCount.get();
+        }
+    }
+}
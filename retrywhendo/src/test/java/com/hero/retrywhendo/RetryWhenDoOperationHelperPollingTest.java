@@ -0,0 +1,200 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 轮询
+ * 用 TestScheduler 推进轮询的时间，操作和回调都在当前线程同步执行：
+ * 1、上一次还没有结束时，到期的这一次跳过；
+ * 2、结果没有变化时间隔逐次翻倍，最多 maxStretch 倍，结果变化后恢复；
+ * 3、通过返回的 Disposable 或 RetryGroup.cancelAll() 在两次之间停止；
+ * 4、停止后不会再开始新的一次，正在执行的这一次也不再回调。
+ * </pre>
+ */
+public class RetryWhenDoOperationHelperPollingTest {
+
+    private static final long PERIOD_MILLIS = 1000;
+
+    private final TestScheduler testScheduler = new TestScheduler();
+
+    /**
+     * 每次操作开始时的轮询序号
+     */
+    private final List<Long> attemptTicks = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger callBackCount = new AtomicInteger();
+
+    @Test
+    public void overrunningTick_isSkipped() {
+        AtomicReference<OperationCallBack<String, String>> heldCallBack = new AtomicReference<>();
+        Disposable polling = newBuilder((s, operationCallBack) -> {
+            recordAttempt();
+            //不回调，本次一直没有结束
+            heldCallBack.set(operationCallBack);
+        })
+                .build()
+                .doPollingOperation(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        testScheduler.triggerActions();
+        assertEquals(Collections.singletonList(0L), attemptTicks);
+
+        advanceTicks(3);
+        assertEquals("上一次没有结束，到期的都跳过", Collections.singletonList(0L), attemptTicks);
+
+        heldCallBack.get().onSuccess("result");
+        assertEquals(1, callBackCount.get());
+        advanceTicks(1);
+        assertEquals(Arrays.asList(0L, 4L), attemptTicks);
+        polling.dispose();
+    }
+
+    @Test
+    public void unchangedResult_stretchesIntervalUpToMaxStretch_andResetsOnChange() {
+        Disposable polling = newBuilder((s, operationCallBack) -> {
+            long tick = recordAttempt();
+            //第8次之前结果一直不变，之后变化一次后又保持不变
+            operationCallBack.onSuccess(tick < 8 ? "same" : "changed");
+        })
+                .build()
+                .doPollingOperation(PERIOD_MILLIS, TimeUnit.MILLISECONDS, 4);
+
+        testScheduler.triggerActions();
+        advanceTicks(15);
+
+        //间隔 1、2、4、4（最多4倍），结果变化后恢复为 1，再翻倍
+        assertEquals(Arrays.asList(0L, 1L, 3L, 7L, 11L, 12L, 14L), attemptTicks);
+        assertEquals(7, callBackCount.get());
+        polling.dispose();
+    }
+
+    @Test
+    public void disposeBetweenTicks_stopsPolling() {
+        Disposable polling = newBuilder((s, operationCallBack) -> {
+            recordAttempt();
+            operationCallBack.onSuccess("result");
+        })
+                .build()
+                .doPollingOperation(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        testScheduler.triggerActions();
+        advanceTicks(1);
+        polling.dispose();
+        advanceTicks(5);
+
+        assertTrue(polling.isDisposed());
+        assertEquals(Arrays.asList(0L, 1L), attemptTicks);
+        assertEquals(2, callBackCount.get());
+    }
+
+    @Test
+    public void groupCancelAllBetweenTicks_stopsPolling() {
+        RetryGroup retryGroup = RetryGroup.create();
+        Disposable polling = newBuilder((s, operationCallBack) -> {
+            recordAttempt();
+            operationCallBack.onSuccess("result");
+        })
+                .setRetryGroup(retryGroup)
+                .build()
+                .doPollingOperation(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        testScheduler.triggerActions();
+        assertEquals(0, retryGroup.getActiveCount());
+        retryGroup.cancelAll();
+        advanceTicks(5);
+
+        assertTrue(polling.isDisposed());
+        assertEquals(Collections.singletonList(0L), attemptTicks);
+        assertEquals(0, retryGroup.getActiveCount());
+        assertTrue(retryGroup.awaitAll().blockingAwait(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void disposeDuringTick_noCallBackAndNoMoreTicks() {
+        AtomicReference<OperationCallBack<String, String>> heldCallBack = new AtomicReference<>();
+        RetryGroup retryGroup = RetryGroup.create();
+        Disposable polling = newBuilder((s, operationCallBack) -> {
+            recordAttempt();
+            heldCallBack.set(operationCallBack);
+        })
+                .setRetryGroup(retryGroup)
+                .build()
+                .doPollingOperation(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        testScheduler.triggerActions();
+        assertEquals(1, retryGroup.getActiveCount());
+
+        polling.dispose();
+        //正在执行的这一次按取消结束
+        assertEquals(0, retryGroup.getActiveCount());
+        assertEquals(1, retryGroup.getCancelledCount());
+
+        heldCallBack.get().onSuccess("late");
+        advanceTicks(5);
+
+        assertEquals(Collections.singletonList(0L), attemptTicks);
+        assertEquals(0, callBackCount.get());
+    }
+
+    private Builder newBuilder(OnDoOperationListener<String, String, String> onDoOperationListener) {
+        return RetryWhenDoOperationHelper.getInstance()
+                .setPollingScheduler(testScheduler)
+                .setSubscribeOnScheduler(Schedulers.trampoline())
+                .setObserveOnScheduler(Schedulers.trampoline())
+                .setParam("param")
+                .setFinalCallBack(new FinalCallBack<String, String>() {
+                    @Override
+                    public void onFailed(String failedBean) {
+                        callBackCount.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onSuccess(String successBean) {
+                        callBackCount.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        callBackCount.incrementAndGet();
+                    }
+                })
+                .setOnDoOperationListener(onDoOperationListener);
+    }
+
+    /**
+     * @return 当前的轮询序号
+     */
+    private long recordAttempt() {
+        long tick = testScheduler.now(TimeUnit.MILLISECONDS) / PERIOD_MILLIS;
+        attemptTicks.add(tick);
+        return tick;
+    }
+
+    /**
+     * 逐个周期推进，每次到期的轮询都在当前线程执行完
+     */
+    private void advanceTicks(int count) {
+        for (int i = 0; i < count; i++) {
+            testScheduler.advanceTimeBy(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.hero.retrywhendo;
+
+import com.hero.retrywhendo.interfaces.FinalCallBack;
+import com.hero.retrywhendo.interfaces.OnDoOperationListener;
+import com.hero.retrywhendo.interfaces.OperationCallBack;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ * 并发压力测试
+ * 多线程同时调用 doRetryWhenOperation()、stopNow() 以及并发回调 OperationCallBack，检查：
+ * 1、最终回调只有一次；
+ * 2、stopNow() 返回后不会再开始回调，返回后才进入回调接口的只有停止时已经开始的回调（不等待它们）；
+ * 3、重试不会丢失，操作次数 = 重试列表长度 + 1。
+ * 每次修改后都应该运行。
+ * </pre>
+ */
+public class RetryWhenDoOperationHelperStressTest {
+
+    private static final int EXECUTION_COUNT = 300;
+
+    /**
+     * 每次操作同时回调的线程数
+     */
+    private static final int CALLBACK_THREAD_COUNT = 4;
+
+    private static final ExecutorService callBackExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * 回调线程，多线程以便暴露竞争
+     */
+    private static final Scheduler observeOnScheduler = Schedulers.computation();
+
+    @AfterClass
+    public static void tearDown() {
+        callBackExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentDeliveries_finalCallBackExactlyOnce() throws Exception {
+        List<CallBackCounter> counterList = new ArrayList<>();
+        CountDownLatch finishedLatch = new CountDownLatch(EXECUTION_COUNT);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            CallBackCounter counter = new CallBackCounter(finishedLatch);
+            counterList.add(counter);
+            AtomicInteger attemptCount = new AtomicInteger();
+            newBuilder(counter)
+                    .setDelayTimeList(Arrays.asList(1, 1, 1))
+                    .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                        int attempt = attemptCount.incrementAndGet();
+                        //同一个回调被多个线程同时调用成功、失败
+                        deliverConcurrently(operationCallBack, callBack -> {
+                            if (attempt < 3 || ThreadLocalRandom.current().nextBoolean()) {
+                                callBack.onFailed("failed" + attempt);
+                            } else {
+                                callBack.onSuccess("success" + attempt);
+                            }
+                        });
+                    })
+                    .build()
+                    .doRetryWhenOperation();
+        }
+
+        assertTrue("有执行没有结束", finishedLatch.await(30, TimeUnit.SECONDS));
+        //等待可能重复的回调
+        Thread.sleep(300);
+        for (CallBackCounter counter : counterList) {
+            assertEquals(1, counter.total());
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentStopNow_noCallBackAfterStop() throws Exception {
+        AtomicInteger duplicateCount = new AtomicInteger();
+        List<AtomicInteger> lateCountList = new ArrayList<>();
+        List<AtomicInteger> startedCountList = new ArrayList<>();
+        CountDownLatch stoppedLatch = new CountDownLatch(EXECUTION_COUNT);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            AtomicBoolean isStopReturned = new AtomicBoolean();
+            AtomicInteger lateCallBackCount = new AtomicInteger();
+            AtomicInteger startedCallBackCount = new AtomicInteger();
+            lateCountList.add(lateCallBackCount);
+            startedCountList.add(startedCallBackCount);
+            AtomicInteger callBackCount = new AtomicInteger();
+            FinalCallBack<String, String> finalCallBack = new FinalCallBack<String, String>() {
+                @Override
+                public void onFailed(String failedBean) {
+                    onCallBack();
+                }
+
+                @Override
+                public void onSuccess(String successBean) {
+                    onCallBack();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    onCallBack();
+                }
+
+                private void onCallBack() {
+                    //进入回调时 stopNow() 已经返回
+                    if (isStopReturned.get()) {
+                        lateCallBackCount.incrementAndGet();
+                    }
+                    if (callBackCount.incrementAndGet() > 1) {
+                        duplicateCount.incrementAndGet();
+                    }
+                }
+            };
+            RetryWhenDoOperationHelper helper = RetryWhenDoOperationHelper.getInstance()
+                    .setDelayTimeList(Arrays.asList(1, 1))
+                    .setUnit(TimeUnit.MILLISECONDS)
+                    .setSubscribeOnScheduler(Schedulers.io())
+                    .setObserveOnScheduler(observeOnScheduler)
+                    .setParam("param")
+                    .setFinalCallBack(finalCallBack)
+                    .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) ->
+                            deliverConcurrently(operationCallBack, callBack -> {
+                                if (ThreadLocalRandom.current().nextBoolean()) {
+                                    callBack.onSuccess("success");
+                                } else {
+                                    callBack.onFailed("failed");
+                                }
+                            }))
+                    .build();
+
+            helper.doRetryWhenOperation();
+            callBackExecutor.execute(() -> {
+                sleepMicros(ThreadLocalRandom.current().nextInt(3000));
+                startedCallBackCount.set(helper.stopAndCountStartedCallBacks());
+                isStopReturned.set(true);
+                stoppedLatch.countDown();
+            });
+        }
+
+        assertTrue(stoppedLatch.await(30, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            //只有停止时已经开始（通过了 CAS）的回调才可能在返回之后进入回调接口
+            assertTrue("stopNow() 返回后仍开始了回调", lateCountList.get(i).get() <= startedCountList.get(i).get());
+        }
+        assertEquals("重复的最终回调", 0, duplicateCount.get());
+    }
+
+    @Test(timeout = 60_000)
+    public void alwaysFailing_noLostRetries() throws Exception {
+        List<Integer> delayTimeList = Arrays.asList(1, 2, 1, 2);
+        List<CallBackCounter> counterList = new ArrayList<>();
+        List<AtomicInteger> attemptCountList = new ArrayList<>();
+        CountDownLatch finishedLatch = new CountDownLatch(EXECUTION_COUNT);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            CallBackCounter counter = new CallBackCounter(finishedLatch);
+            AtomicInteger attemptCount = new AtomicInteger();
+            counterList.add(counter);
+            attemptCountList.add(attemptCount);
+            newBuilder(counter)
+                    .setDelayTimeList(delayTimeList)
+                    .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) -> {
+                        attemptCount.incrementAndGet();
+                        deliverConcurrently(operationCallBack, callBack -> callBack.onFailed("failed"));
+                    })
+                    .build()
+                    .doRetryWhenOperation();
+        }
+
+        assertTrue("有执行没有结束", finishedLatch.await(30, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            assertEquals(delayTimeList.size() + 1, attemptCountList.get(i).get());
+            assertEquals(1, counterList.get(i).failedCount.get());
+            assertEquals(1, counterList.get(i).total());
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void lateSuccessRacingRetry_finalCallBackExactlyOnce() throws Exception {
+        List<CallBackCounter> counterList = new ArrayList<>();
+        CountDownLatch finishedLatch = new CountDownLatch(EXECUTION_COUNT);
+        for (int i = 0; i < EXECUTION_COUNT; i++) {
+            CallBackCounter counter = new CallBackCounter(finishedLatch);
+            counterList.add(counter);
+            newBuilder(counter)
+                    .setDelayTimeList(Arrays.asList(1, 1, 1, 1))
+                    .setAttemptTimeout(2, TimeUnit.MILLISECONDS)
+                    .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) ->
+                            //超时之后才回调，与下一次重试竞争
+                            callBackExecutor.execute(() -> {
+                                sleepMicros(ThreadLocalRandom.current().nextInt(1000, 5000));
+                                deliverConcurrently(operationCallBack, callBack -> callBack.onSuccess("late"));
+                            }))
+                    .build()
+                    .doRetryWhenOperation();
+        }
+
+        assertTrue("有执行没有结束", finishedLatch.await(30, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        for (CallBackCounter counter : counterList) {
+            assertEquals(1, counter.total());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void stopNowWhileCallBackWaitsOnStopper_doesNotDeadlock() throws Exception {
+        CountDownLatch callBackStartedLatch = new CountDownLatch(1);
+        CountDownLatch stopReturnedLatch = new CountDownLatch(1);
+        AtomicBoolean isStopReturnedInCallBack = new AtomicBoolean();
+        FinalCallBack<String, String> finalCallBack = new FinalCallBack<String, String>() {
+            @Override
+            public void onFailed(String failedBean) {
+            }
+
+            @Override
+            public void onSuccess(String successBean) {
+                callBackStartedLatch.countDown();
+                //等待正在 stopNow() 的线程，回调在锁中执行时会死锁
+                try {
+                    isStopReturnedInCallBack.set(stopReturnedLatch.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        };
+        RetryWhenDoOperationHelper helper = RetryWhenDoOperationHelper.getInstance()
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(Schedulers.single())
+                .setParam("param")
+                .setFinalCallBack(finalCallBack)
+                .setOnDoOperationListener((OnDoOperationListener<String, String, String>) (s, operationCallBack) ->
+                        operationCallBack.onSuccess("success"))
+                .build();
+
+        helper.doRetryWhenOperation();
+        assertTrue(callBackStartedLatch.await(5, TimeUnit.SECONDS));
+        helper.stopNow();
+        stopReturnedLatch.countDown();
+        Thread.sleep(100);
+        assertTrue("回调中等到了 stopNow() 返回", isStopReturnedInCallBack.get());
+    }
+
+    private Builder newBuilder(CallBackCounter counter) {
+        return RetryWhenDoOperationHelper.getInstance()
+                .setUnit(TimeUnit.MILLISECONDS)
+                .setSubscribeOnScheduler(Schedulers.io())
+                .setObserveOnScheduler(observeOnScheduler)
+                .setParam("param")
+                .setFinalCallBack(counter);
+    }
+
+    /**
+     * 多个线程同时对同一个回调进行回调
+     */
+    private static void deliverConcurrently(OperationCallBack<String, String> operationCallBack,
+                                            io.reactivex.rxjava3.functions.Consumer<OperationCallBack<String, String>> delivery) {
+        CyclicBarrier barrier = new CyclicBarrier(CALLBACK_THREAD_COUNT);
+        for (int i = 0; i < CALLBACK_THREAD_COUNT; i++) {
+            callBackExecutor.execute(() -> {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    delivery.accept(operationCallBack);
+                } catch (Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private static void sleepMicros(long micros) {
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 统计最终回调次数
+     */
+    private static class CallBackCounter implements FinalCallBack<String, String> {
+        private final CountDownLatch finishedLatch;
+        private final AtomicInteger failedCount = new AtomicInteger();
+        private final AtomicInteger successCount = new AtomicInteger();
+        private final AtomicInteger errorCount = new AtomicInteger();
+
+        CallBackCounter(CountDownLatch finishedLatch) {
+            this.finishedLatch = finishedLatch;
+        }
+
+        @Override
+        public void onFailed(String failedBean) {
+            onCallBack(failedCount);
+        }
+
+        @Override
+        public void onSuccess(String successBean) {
+            onCallBack(successCount);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            onCallBack(errorCount);
+        }
+
+        private void onCallBack(AtomicInteger count) {
+            if (count.incrementAndGet() == 1 && total() == 1) {
+                finishedLatch.countDown();
+            }
+        }
+
+        int total() {
+            return failedCount.get() + successCount.get() + errorCount.get();
+        }
+    }
+}